@@ -17,21 +17,25 @@
 package com.obnsoft.sandbox;
 
 import com.obnsoft.view.MagnifyView;
-import com.obnsoft.view.MagnifyView.EventHandler;
+import com.obnsoft.view.MagnifyView.PredictiveEventHandler;
+import com.obnsoft.view.MinimapView;
+import com.obnsoft.view.PixelHistory;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
+import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.FrameLayout;
 
-public class MyMagnifyActivity extends Activity implements EventHandler {
+public class MyMagnifyActivity extends Activity implements PredictiveEventHandler {
 
     static final int MP = ViewGroup.LayoutParams.MATCH_PARENT;
     static final int WC = ViewGroup.LayoutParams.WRAP_CONTENT;
@@ -39,6 +43,8 @@ public class MyMagnifyActivity extends Activity implements EventHandler {
     float[] mHSV = {0f, 1f, 1f};
     Bitmap      mBitmap;
     MagnifyView mMgView;
+    int         mColor;
+    PixelHistory mHistory;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -64,6 +70,20 @@ public class MyMagnifyActivity extends Activity implements EventHandler {
             }
         });
         fl.addView(checkBox, new LayoutParams(WC, WC));
+
+        mHistory = new PixelHistory(mMgView.getPixelBuffer(), 1024 * 1024);
+        Button undoButton = new Button(this);
+        undoButton.setText("Undo");
+        undoButton.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                mHistory.undo();
+            }
+        });
+        fl.addView(undoButton, new FrameLayout.LayoutParams(WC, WC, Gravity.RIGHT));
+
+        MinimapView minimap = new MinimapView(this);
+        minimap.setMagnifyView(mMgView);
+        fl.addView(minimap, new FrameLayout.LayoutParams(128, 128, Gravity.RIGHT | Gravity.BOTTOM));
     }
 
     @Override
@@ -75,16 +95,23 @@ public class MyMagnifyActivity extends Activity implements EventHandler {
 
     @Override
     public boolean onTouchEventUnit(int action, float unitX, float unitY,
-            float[] historicalCoords) {
+            float[] historicalCoords, int historySize) {
+        if (action == MotionEvent.ACTION_DOWN) {
+            mHistory.beginOperation();
+        }
         if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
-            int x = (int) unitX;
-            int y = (int) unitY;
-            if (x >= 0 && y >= 0 && x < mBitmap.getWidth() && y < mBitmap.getHeight()) {
-                mBitmap.setPixel(x, y, Color.HSVToColor(mHSV));
-                if (++mHSV[0] >= 360) mHSV[0] = 0;
-                mMgView.invalidateUnit(x, y);
-            }
+            mColor = Color.HSVToColor(mHSV);
+            if (++mHSV[0] >= 360) mHSV[0] = 0;
+        }
+        mMgView.drawStrokeUnits(action, unitX, unitY, historicalCoords, historySize, null, mColor);
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mHistory.endOperation();
         }
         return true;
     }
+
+    @Override
+    public void onPredictedUnits(float[] predictedCoords, int predictedSize) {
+        mMgView.setProvisionalUnits(predictedCoords, predictedSize, mColor);
+    }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.Arrays;
+
+/**
+ * Counts of the colors used in a {@link PixelBuffer}, ranked by count. The
+ * pixels are counted once, in parallel for large buffers, and then every
+ * change made through the buffer moves one color up and one down the ranking
+ * in constant time, so the most used colors can be read at any moment.
+ * Writes made directly to the pixel array need {@link #rebuild()}.
+ */
+public class ColorHistogram implements PixelBuffer.ChangeListener {
+
+    private static final int PARALLEL_THRESHOLD = 512 * 512;
+    private static final int MAX_THREADS = 4;
+
+    private PixelBuffer mBuffer;
+    private int     mColorCount;
+
+    /* Colors are held in slots. mOrder lists the slots by count in descending
+     * order, and the slots of the same count form a block whose first and last
+     * positions are kept in mStarts and mEnds. Slots of count 0 are at the tail
+     * and are reused for new colors. */
+    private IntIntMap mSlots = new IntIntMap(256);
+    private int[]   mSlotColors = new int[256];
+    private int[]   mSlotCounts = new int[256];
+    private int[]   mSlotPositions = new int[256];
+    private int[]   mOrder = new int[256];
+    private int     mSlotCount;
+    private IntIntMap mStarts = new IntIntMap(256);
+    private IntIntMap mEnds = new IntIntMap(256);
+
+    /*-----------------------------------------------------------------------*/
+
+    public ColorHistogram(PixelBuffer buffer) {
+        mBuffer = buffer;
+        rebuild();
+        buffer.addChangeListener(this);
+    }
+
+    public void detach() {
+        mBuffer.removeChangeListener(this);
+    }
+
+    /**
+     * Counts all pixels again.
+     */
+    public void rebuild() {
+        IntIntMap counts = countPixels(mBuffer.getPixels());
+        int n = counts.size();
+        mSlots = new IntIntMap(n);
+        mStarts = new IntIntMap(16);
+        mEnds = new IntIntMap(16);
+        mSlotCount = 0;
+        ensureSlots(n);
+        long[] keys = new long[n];
+        for (int i = 0, k = 0; i < counts.mKeys.length; i++) {
+            if (counts.mUsed[i]) {
+                mSlotColors[k] = counts.mKeys[i];
+                mSlotCounts[k] = counts.mValues[i];
+                mSlots.put(counts.mKeys[i], k);
+                keys[k] = (long) counts.mValues[i] << 32 | k;
+                k++;
+            }
+        }
+        Arrays.sort(keys);
+        for (int pos = 0; pos < n; pos++) {
+            int slot = (int) keys[n - 1 - pos];
+            int count = mSlotCounts[slot];
+            mOrder[pos] = slot;
+            mSlotPositions[slot] = pos;
+            if (mStarts.get(count, -1) < 0) {
+                mStarts.put(count, pos);
+            }
+            mEnds.put(count, pos);
+        }
+        mSlotCount = n;
+        mColorCount = n;
+    }
+
+    /**
+     * Returns the number of colors used at least once.
+     */
+    public int getColorCount() {
+        return mColorCount;
+    }
+
+    public int getCount(int color) {
+        int slot = mSlots.get(color, -1);
+        return (slot < 0) ? 0 : mSlotCounts[slot];
+    }
+
+    /**
+     * Returns the color at the rank, where 0 is the most used one.
+     */
+    public int getColorAt(int rank) {
+        return mSlotColors[mOrder[rank]];
+    }
+
+    public int getCountAt(int rank) {
+        return mSlotCounts[mOrder[rank]];
+    }
+
+    /**
+     * Stores up to n of the most used colors and their counts, either array
+     * may be null.
+     *
+     * @return the number of colors stored.
+     */
+    public int getTopColors(int[] outColors, int[] outCounts, int n) {
+        n = Math.min(n, mColorCount);
+        for (int rank = 0; rank < n; rank++) {
+            int slot = mOrder[rank];
+            if (outColors != null) outColors[rank] = mSlotColors[slot];
+            if (outCounts != null) outCounts[rank] = mSlotCounts[slot];
+        }
+        return n;
+    }
+
+    @Override
+    public void onPixelChanged(int index, int oldColor, int newColor) {
+        decrement(oldColor);
+        increment(newColor);
+    }
+
+    @Override
+    public void onPixelsChanged(int index, int count,
+            int[] oldColors, int oldOffset, int[] newColors, int newOffset) {
+        for (int i = 0; i < count; i++) {
+            int oldColor = oldColors[oldOffset + i];
+            int newColor = newColors[newOffset + i];
+            if (oldColor != newColor) {
+                decrement(oldColor);
+                increment(newColor);
+            }
+        }
+    }
+
+    @Override
+    public void onPixelsReplaced() {
+        rebuild();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void increment(int color) {
+        int slot = mSlots.get(color, -1);
+        if (slot < 0) {
+            slot = addSlot(color);
+        }
+        int count = mSlotCounts[slot];
+        int start = mStarts.get(count, -1);
+        int end = mEnds.get(count, -1);
+        // Move the slot to the head of its block, which then joins the block above.
+        swap(mSlotPositions[slot], start);
+        if (start == end) {
+            mStarts.remove(count);
+            mEnds.remove(count);
+        } else {
+            mStarts.put(count, start + 1);
+        }
+        if (mStarts.get(count + 1, -1) < 0) {
+            mStarts.put(count + 1, start);
+        }
+        mEnds.put(count + 1, start);
+        mSlotCounts[slot] = count + 1;
+        if (count == 0) {
+            mColorCount++;
+        }
+    }
+
+    private void decrement(int color) {
+        int slot = mSlots.get(color, -1);
+        if (slot < 0 || mSlotCounts[slot] == 0) {
+            return;
+        }
+        int count = mSlotCounts[slot];
+        int start = mStarts.get(count, -1);
+        int end = mEnds.get(count, -1);
+        // Move the slot to the tail of its block, which then joins the block below.
+        swap(mSlotPositions[slot], end);
+        if (start == end) {
+            mStarts.remove(count);
+            mEnds.remove(count);
+        } else {
+            mEnds.put(count, end - 1);
+        }
+        if (mEnds.get(count - 1, -1) < 0) {
+            mEnds.put(count - 1, end);
+        }
+        mStarts.put(count - 1, end);
+        mSlotCounts[slot] = count - 1;
+        if (count == 1) {
+            mColorCount--;
+        }
+    }
+
+    /**
+     * Returns a slot of count 0 for a new color.
+     */
+    private int addSlot(int color) {
+        int end = mEnds.get(0, -1);
+        int slot;
+        if (end >= 0) {
+            slot = mOrder[end];
+            mSlots.remove(mSlotColors[slot]);
+        } else {
+            ensureSlots(mSlotCount + 1);
+            slot = mSlotCount++;
+            mOrder[slot] = slot;
+            mSlotPositions[slot] = slot;
+            mSlotCounts[slot] = 0;
+            mStarts.put(0, slot);
+            mEnds.put(0, slot);
+        }
+        mSlotColors[slot] = color;
+        mSlots.put(color, slot);
+        return slot;
+    }
+
+    private void swap(int pos1, int pos2) {
+        int slot1 = mOrder[pos1];
+        int slot2 = mOrder[pos2];
+        mOrder[pos1] = slot2;
+        mOrder[pos2] = slot1;
+        mSlotPositions[slot2] = pos1;
+        mSlotPositions[slot1] = pos2;
+    }
+
+    private void ensureSlots(int n) {
+        if (mOrder.length < n) {
+            int size = Math.max(n, mOrder.length * 2);
+            mSlotColors = resize(mSlotColors, size);
+            mSlotCounts = resize(mSlotCounts, size);
+            mSlotPositions = resize(mSlotPositions, size);
+            mOrder = resize(mOrder, size);
+        }
+    }
+
+    private static int[] resize(int[] array, int size) {
+        int[] newArray = new int[size];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    private static IntIntMap countPixels(final int[] pixels) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+        if (threads <= 1 || pixels.length < PARALLEL_THRESHOLD) {
+            return countRange(pixels, 0, pixels.length);
+        }
+        final IntIntMap[] results = new IntIntMap[threads];
+        Thread[] workers = new Thread[threads - 1];
+        final int chunk = (pixels.length + threads - 1) / threads;
+        for (int i = 0; i < workers.length; i++) {
+            final int index = i + 1;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int start = chunk * index;
+                    results[index] = countRange(pixels, start,
+                            Math.min(start + chunk, pixels.length));
+                }
+            });
+            workers[i].start();
+        }
+        IntIntMap counts = countRange(pixels, 0, chunk);
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            IntIntMap result = results[i + 1];
+            for (int j = 0; j < result.mKeys.length; j++) {
+                if (result.mUsed[j]) {
+                    int key = result.mKeys[j];
+                    counts.put(key, counts.get(key, 0) + result.mValues[j]);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static IntIntMap countRange(int[] pixels, int start, int end) {
+        IntIntMap counts = new IntIntMap(256);
+        int last = 0;
+        int run = 0;
+        for (int i = start; i < end; i++) {
+            // Neighboring pixels mostly share colors, so count runs first.
+            int c = pixels[i];
+            if (run > 0 && c != last) {
+                counts.put(last, counts.get(last, 0) + run);
+                run = 0;
+            }
+            last = c;
+            run++;
+        }
+        if (run > 0) {
+            counts.put(last, counts.get(last, 0) + run);
+        }
+        return counts;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Open addressing map of int keys to int values.
+     */
+    private static class IntIntMap {
+
+        int[]   mKeys;
+        int[]   mValues;
+        boolean[] mUsed;
+        int     mSize;
+
+        IntIntMap(int capacity) {
+            int n = 16;
+            while (n < capacity * 2) {
+                n <<= 1;
+            }
+            mKeys = new int[n];
+            mValues = new int[n];
+            mUsed = new boolean[n];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int get(int key, int defValue) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; mUsed[i]; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return defValue;
+        }
+
+        void put(int key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+            }
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            for (; mUsed[i]; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    mValues[i] = value;
+                    return;
+                }
+            }
+            mUsed[i] = true;
+            mKeys[i] = key;
+            mValues[i] = value;
+            mSize++;
+        }
+
+        void remove(int key) {
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            for (; mUsed[i]; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    break;
+                }
+            }
+            if (!mUsed[i]) {
+                return;
+            }
+            mUsed[i] = false;
+            mSize--;
+            // Shift back the following entries which can't be found past the hole.
+            for (int j = (i + 1) & mask; mUsed[j]; j = (j + 1) & mask) {
+                int home = hash(mKeys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    mKeys[i] = mKeys[j];
+                    mValues[i] = mValues[j];
+                    mUsed[i] = true;
+                    mUsed[j] = false;
+                    i = j;
+                }
+            }
+        }
+
+        private void grow() {
+            int[] keys = mKeys;
+            int[] values = mValues;
+            boolean[] used = mUsed;
+            mKeys = new int[keys.length * 2];
+            mValues = new int[keys.length * 2];
+            mUsed = new boolean[keys.length * 2];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Rect;
+
+/**
+ * Small set of rectangles which accumulates dirty areas. An added rectangle is
+ * merged with a stored one when their union is no larger than their two areas
+ * together, such as when they touch along a whole side or overlap enough.
+ * Other rectangles are kept apart even if they overlap, and when the set is
+ * full the pair whose union wastes the least area is merged.
+ */
+public class DirtyRegion {
+
+    private int     mMaxCount;
+    private int     mCount;
+    private int[]   mRects;
+
+    /*-----------------------------------------------------------------------*/
+
+    public DirtyRegion(int maxCount) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("maxCount must be positive");
+        }
+        mMaxCount = maxCount;
+        mRects = new int[maxCount * 4];
+    }
+
+    public void add(int l, int t, int r, int b) {
+        if (l >= r || t >= b) {
+            return;
+        }
+        for (int i = 0; i < mCount; i++) {
+            int p = i * 4;
+            if (wasteOfUnion(p, l, t, r, b) <= 0) {
+                l = Math.min(l, mRects[p]);
+                t = Math.min(t, mRects[p + 1]);
+                r = Math.max(r, mRects[p + 2]);
+                b = Math.max(b, mRects[p + 3]);
+                remove(i);
+                add(l, t, r, b);
+                return;
+            }
+        }
+        if (mCount == mMaxCount) {
+            mergeCheapestPair(l, t, r, b);
+        } else {
+            set(mCount++, l, t, r, b);
+        }
+    }
+
+    public void add(Rect rect) {
+        add(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public boolean isEmpty() {
+        return (mCount == 0);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public void getRect(int index, Rect outRect) {
+        int p = index * 4;
+        outRect.set(mRects[p], mRects[p + 1], mRects[p + 2], mRects[p + 3]);
+    }
+
+    public void getBounds(Rect outRect) {
+        outRect.setEmpty();
+        for (int i = 0; i < mCount; i++) {
+            int p = i * 4;
+            outRect.union(mRects[p], mRects[p + 1], mRects[p + 2], mRects[p + 3]);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int wasteOfUnion(int p, int l, int t, int r, int b) {
+        int ul = Math.min(l, mRects[p]);
+        int ut = Math.min(t, mRects[p + 1]);
+        int ur = Math.max(r, mRects[p + 2]);
+        int ub = Math.max(b, mRects[p + 3]);
+        return (ur - ul) * (ub - ut) - (r - l) * (b - t) - area(p);
+    }
+
+    private void mergeCheapestPair(int l, int t, int r, int b) {
+        // Candidates are the new rectangle with each stored one, and each stored pair.
+        int bestI = -1;
+        int bestJ = 0;
+        int bestWaste = Integer.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            int waste = wasteOfUnion(i * 4, l, t, r, b);
+            if (waste < bestWaste) {
+                bestWaste = waste;
+                bestI = i;
+                bestJ = -1;
+            }
+            for (int j = i + 1; j < mCount; j++) {
+                int q = j * 4;
+                waste = wasteOfUnion(i * 4, mRects[q], mRects[q + 1], mRects[q + 2], mRects[q + 3]);
+                if (waste < bestWaste) {
+                    bestWaste = waste;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+        }
+        int p = bestI * 4;
+        if (bestJ < 0) {
+            set(bestI, Math.min(l, mRects[p]), Math.min(t, mRects[p + 1]),
+                    Math.max(r, mRects[p + 2]), Math.max(b, mRects[p + 3]));
+        } else {
+            int q = bestJ * 4;
+            set(bestI, Math.min(mRects[q], mRects[p]), Math.min(mRects[q + 1], mRects[p + 1]),
+                    Math.max(mRects[q + 2], mRects[p + 2]), Math.max(mRects[q + 3], mRects[p + 3]));
+            set(bestJ, l, t, r, b);
+        }
+    }
+
+    private int area(int p) {
+        return (mRects[p + 2] - mRects[p]) * (mRects[p + 3] - mRects[p + 1]);
+    }
+
+    private void set(int index, int l, int t, int r, int b) {
+        int p = index * 4;
+        mRects[p] = l;
+        mRects[p + 1] = t;
+        mRects[p + 2] = r;
+        mRects[p + 3] = b;
+    }
+
+    private void remove(int index) {
+        mCount--;
+        System.arraycopy(mRects, (index + 1) * 4, mRects, index * 4, (mCount - index) * 4);
+    }
+
+}
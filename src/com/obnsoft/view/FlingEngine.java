@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Computes the trajectory of a 2D fling for {@link FreeScrollView}. Times
+ * are given by the caller in milliseconds, so an engine depends on nothing of
+ * Android and its trajectories can be run on a plain JVM.
+ */
+public interface FlingEngine {
+
+    /**
+     * Starts a fling. Velocities are in pixels per second, and the position
+     * stops within the bounds.
+     */
+    public void fling(int startX, int startY, int velocityX, int velocityY,
+            int minX, int maxX, int minY, int maxY, long time);
+
+    /**
+     * Moves the fling to a new final position from where it is at the time,
+     * within the bounds of the fling.
+     */
+    public void retarget(int finalX, int finalY, long time);
+
+    /**
+     * Updates the current position for the time.
+     *
+     * @return false if the fling had already finished.
+     */
+    public boolean computeOffset(long time);
+
+    /**
+     * Stops the fling where it is.
+     */
+    public void abort();
+
+    public boolean isFinished();
+
+    public int getCurrX();
+
+    public int getCurrY();
+
+    public int getFinalX();
+
+    public int getFinalY();
+
+    /**
+     * @return the current velocity in pixels per second.
+     */
+    public float getCurrVelocityX();
+
+    public float getCurrVelocityY();
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Rect;
+
+/**
+ * Span-based scanline flood fill over the pixels of a {@link PixelBuffer}.
+ * With a tolerance, the pixels matching the seed color are marked in a mask
+ * one row at a time when the fill first reaches the row, so a small fill
+ * costs only the rows it touches.
+ */
+public class FloodFill {
+
+    public static final int CONNECT_4 = 4;
+    public static final int CONNECT_8 = 8;
+
+    private int     mTolerance;
+    private int     mConnectivity = CONNECT_4;
+
+    private byte[]  mMask = new byte[0];
+    /* A row of the mask is valid for the fill whose stamp it has. */
+    private int[]   mRowStamps = new int[0];
+    private int     mStamp;
+    private int[]   mPixels;
+    private int     mStride;
+    private int     mTarget;
+    private int[]   mStack = new int[256];
+    private int     mStackSize;
+    private Rect    mBounds = new Rect();
+
+    /*-----------------------------------------------------------------------*/
+
+    public FloodFill() {
+    }
+
+    public FloodFill(int tolerance, int connectivity) {
+        setTolerance(tolerance);
+        setConnectivity(connectivity);
+    }
+
+    /**
+     * Sets the largest difference of each ARGB channel from the seed color
+     * that is still filled.
+     */
+    public void setTolerance(int tolerance) {
+        mTolerance = Math.max(0, Math.min(tolerance, 255));
+    }
+
+    public void setConnectivity(int connectivity) {
+        if (connectivity != CONNECT_4 && connectivity != CONNECT_8) {
+            throw new IllegalArgumentException("connectivity must be 4 or 8");
+        }
+        mConnectivity = connectivity;
+    }
+
+    /**
+     * Fills the area connected to (x, y) inside bounds, and marks only its
+     * bounding box dirty.
+     *
+     * @param outRect receives the bounding box of the filled pixels; may be null.
+     * @return the number of filled pixels.
+     */
+    public int fill(PixelBuffer buffer, Rect bounds, int x, int y, int color, Rect outRect) {
+        Rect b = mBounds;
+        b.set(0, 0, buffer.getWidth(), buffer.getHeight());
+        if ((bounds != null && !b.intersect(bounds)) || !b.contains(x, y)) {
+            if (outRect != null) outRect.setEmpty();
+            return 0;
+        }
+        int[] pixels = buffer.getPixels();
+        int stride = buffer.getWidth();
+        int target = pixels[y * stride + x];
+        if (mTolerance == 0 && target == color) {
+            if (outRect != null) outRect.setEmpty();
+            return 0;
+        }
+        boolean useMask = (mTolerance > 0);
+        if (useMask) {
+            prepareMask(pixels, stride, target);
+        }
+
+        int bw = b.width();
+        int d = (mConnectivity == CONNECT_8) ? 1 : 0;
+        int minX = x, minY = y, maxX = x, maxY = y;
+        int count = 0;
+        mStackSize = 0;
+        push(x, y);
+        while (mStackSize > 0) {
+            mStackSize -= 2;
+            int sx = mStack[mStackSize];
+            int sy = mStack[mStackSize + 1];
+            int row = sy * stride;
+            int mrow = (sy - b.top) * bw - b.left;
+            if (useMask) {
+                prepareMaskRow(sy);
+            }
+            if (useMask ? mMask[mrow + sx] == 0 : pixels[row + sx] != target) {
+                continue;
+            }
+            int x1 = sx;
+            while (x1 > b.left && (useMask ?
+                    mMask[mrow + x1 - 1] != 0 : pixels[row + x1 - 1] == target)) {
+                x1--;
+            }
+            int x2 = sx;
+            while (x2 < b.right - 1 && (useMask ?
+                    mMask[mrow + x2 + 1] != 0 : pixels[row + x2 + 1] == target)) {
+                x2++;
+            }
+            for (int i = x1; i <= x2; i++) {
+                buffer.put(row + i, color);
+                if (useMask) mMask[mrow + i] = 0;
+            }
+            count += x2 - x1 + 1;
+            if (x1 < minX) minX = x1;
+            if (x2 > maxX) maxX = x2;
+            if (sy < minY) minY = sy;
+            if (sy > maxY) maxY = sy;
+
+            int l = Math.max(x1 - d, b.left);
+            int r = Math.min(x2 + d, b.right - 1);
+            if (sy > b.top) {
+                scanRow(pixels, stride, target, useMask, sy - 1, l, r);
+            }
+            if (sy < b.bottom - 1) {
+                scanRow(pixels, stride, target, useMask, sy + 1, l, r);
+            }
+        }
+        mPixels = null;
+        buffer.markDirty(minX, minY, maxX, maxY);
+        if (outRect != null) {
+            outRect.set(minX, minY, maxX + 1, maxY + 1);
+        }
+        return count;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void scanRow(int[] pixels, int stride, int target, boolean useMask,
+            int y, int l, int r) {
+        Rect b = mBounds;
+        int row = y * stride;
+        int mrow = (y - b.top) * b.width() - b.left;
+        if (useMask) {
+            prepareMaskRow(y);
+        }
+        boolean inRun = false;
+        for (int x = l; x <= r; x++) {
+            boolean fillable = useMask ? mMask[mrow + x] != 0 : pixels[row + x] == target;
+            if (fillable && !inRun) {
+                push(x, y);
+            }
+            inRun = fillable;
+        }
+    }
+
+    private void push(int x, int y) {
+        if (mStackSize + 2 > mStack.length) {
+            int[] stack = new int[mStack.length * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+        }
+        mStack[mStackSize++] = x;
+        mStack[mStackSize++] = y;
+    }
+
+    private void prepareMask(int[] pixels, int stride, int target) {
+        Rect b = mBounds;
+        int area = b.width() * b.height();
+        if (mMask.length < area) {
+            mMask = new byte[area];
+        }
+        if (mRowStamps.length < b.height()) {
+            mRowStamps = new int[b.height()];
+            mStamp = 0;
+        }
+        if (++mStamp == 0) {
+            // Wrapped around, so old stamps could be taken as valid.
+            for (int i = 0; i < mRowStamps.length; i++) {
+                mRowStamps[i] = 0;
+            }
+            mStamp = 1;
+        }
+        mPixels = pixels;
+        mStride = stride;
+        mTarget = target;
+    }
+
+    private void prepareMaskRow(int y) {
+        int i = y - mBounds.top;
+        if (mRowStamps[i] != mStamp) {
+            mRowStamps[i] = mStamp;
+            buildMaskRows(mPixels, mStride, mTarget, y, y + 1);
+        }
+    }
+
+    private void buildMaskRows(int[] pixels, int stride, int target, int top, int bottom) {
+        Rect b = mBounds;
+        int bw = b.width();
+        int tol = mTolerance;
+        int ta = target >>> 24;
+        int tr = (target >> 16) & 0xFF;
+        int tg = (target >> 8) & 0xFF;
+        int tb = target & 0xFF;
+        byte[] mask = mMask;
+        for (int y = top; y < bottom; y++) {
+            int row = y * stride;
+            int mrow = (y - b.top) * bw - b.left;
+            for (int x = b.left; x < b.right; x++) {
+                int c = pixels[row + x];
+                boolean match = Math.abs((c >>> 24) - ta) <= tol
+                        && Math.abs(((c >> 16) & 0xFF) - tr) <= tol
+                        && Math.abs(((c >> 8) & 0xFF) - tg) <= tol
+                        && Math.abs((c & 0xFF) - tb) <= tol;
+                mask[mrow + x] = (byte) (match ? 1 : 0);
+            }
+        }
+    }
+
+}
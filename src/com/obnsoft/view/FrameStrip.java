@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+
+/**
+ * Frames of an animation edited one at a time in a {@link MagnifyView}.
+ * Frames are kept as PNG data, and the decoded pixels of recently used frames
+ * are cached under a byte budget, evicting the least recently used ones.
+ * Neighbors of the current frame are decoded ahead on a worker thread into
+ * pooled pixel arrays, and the bitmaps shown are allocated once, so flipping
+ * frames only copies cached pixels. A frame made current before it is decoded
+ * keeps the previous pixels shown until its decoding arrives, and edits made
+ * meanwhile are dropped so that they never land on the wrong frame.
+ * Must be created and used on the UI thread.
+ */
+public class FrameStrip implements PixelBuffer.ChangeListener {
+
+    public static final int DEFAULT_ONION_ALPHA = 64;
+
+    private static final int PINNED_FRAMES = 3;
+    private static final int MAX_POOLED = 2;
+
+    private int     mWidth;
+    private int     mHeight;
+    private int     mMaxFrames;
+    private ArrayList<Frame> mFrames = new ArrayList<Frame>();
+    private LinkedHashMap<Frame, Boolean> mCache =
+            new LinkedHashMap<Frame, Boolean>(16, 0.75f, true);
+    private int     mCurrent = -1;
+    private boolean mIsEdited;
+    private boolean mIsCurrentPending;
+    /* Pixel arrays of evicted frames, to be decoded into. Guarded by itself. */
+    private ArrayList<int[]> mPool = new ArrayList<int[]>();
+
+    private PixelBuffer mBuffer;
+    private Bitmap  mPrevBitmap;
+    private Bitmap  mNextBitmap;
+    private MagnifyView mView;
+
+    private Handler mHandler = new Handler();
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /* Used only on the worker thread. */
+    private Bitmap  mEncodeBitmap;
+
+    /*-----------------------------------------------------------------------*/
+
+    private static class Frame {
+        volatile byte[] mEncoded;
+        int[]   mPixels;
+        /* Pixels evicted from the cache which are still being encoded. */
+        int[]   mEvicted;
+        boolean mIsDirty;
+        boolean mIsLoading;
+    }
+
+    public interface OnFrameEncodedListener {
+        /**
+         * Called on the UI thread with the PNG data of a frame, or null if
+         * the frame has never been drawn.
+         */
+        public void onFrameEncoded(FrameStrip strip, int index, byte[] encoded);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @param maxBytes the budget of decoded pixels, which holds at least the
+     *                 current frame and both of its neighbors.
+     */
+    public FrameStrip(int width, int height, int maxBytes) {
+        mWidth = width;
+        mHeight = height;
+        mMaxFrames = Math.max(maxBytes / (width * height * 4), PINNED_FRAMES);
+        mBuffer = new PixelBuffer(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+        mBuffer.addChangeListener(this);
+        mPrevBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mNextBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Shows the current frame in the view, with the previous and next frames
+     * drawn under it at the alpha. An alpha of 0 turns the onion skin off.
+     */
+    public void setMagnifyView(MagnifyView view, int onionAlpha) {
+        mView = view;
+        if (view != null) {
+            view.setPixelBuffer(mBuffer);
+            view.setOnionSkin(mPrevBitmap, mNextBitmap, onionAlpha);
+        }
+    }
+
+    /**
+     * Returns the buffer holding the pixels of the current frame, to be edited.
+     */
+    public PixelBuffer getPixelBuffer() {
+        return mBuffer;
+    }
+
+    public Bitmap getPreviousBitmap() {
+        return mPrevBitmap;
+    }
+
+    public Bitmap getNextBitmap() {
+        return mNextBitmap;
+    }
+
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    public int getCurrentIndex() {
+        return mCurrent;
+    }
+
+    public int getCacheBytes() {
+        return mCache.size() * mWidth * mHeight * 4;
+    }
+
+    /**
+     * Appends a transparent frame.
+     */
+    public void addFrame() {
+        addFrame((byte[]) null);
+    }
+
+    /**
+     * Appends a frame decoded from PNG data when it is needed.
+     */
+    public void addFrame(byte[] encoded) {
+        Frame frame = new Frame();
+        frame.mEncoded = encoded;
+        mFrames.add(frame);
+        if (mCurrent < 0) {
+            setCurrentFrame(0);
+        } else {
+            refreshNeighbors();
+        }
+    }
+
+    /**
+     * Appends a frame with the pixels of the bitmap. It is encoded when it is
+     * evicted from the cache.
+     */
+    public void addFrame(Bitmap bmp) {
+        Frame frame = new Frame();
+        frame.mPixels = obtainPixels();
+        if (bmp.getWidth() < mWidth || bmp.getHeight() < mHeight) {
+            Arrays.fill(frame.mPixels, 0);
+        }
+        bmp.getPixels(frame.mPixels, 0, mWidth, 0, 0,
+                Math.min(bmp.getWidth(), mWidth), Math.min(bmp.getHeight(), mHeight));
+        frame.mIsDirty = true;
+        mFrames.add(frame);
+        mCache.put(frame, Boolean.TRUE);
+        if (mCurrent < 0) {
+            setCurrentFrame(0);
+        } else {
+            refreshNeighbors();
+            trimCache();
+        }
+    }
+
+    /**
+     * Makes the frame current. The edits of the current frame are kept in the
+     * cache. A frame which is not decoded yet is shown when its decoding on
+     * the worker thread arrives.
+     */
+    public void setCurrentFrame(int index) {
+        if (index < 0 || index >= mFrames.size()) {
+            throw new IndexOutOfBoundsException("No frame " + index);
+        }
+        storeCurrent();
+        mCurrent = index;
+        loadCurrent();
+        refreshNeighbors();
+        // Frames two steps away are likely to be shown next.
+        if (index >= 2) {
+            requestFrame(mFrames.get(index - 2));
+        }
+        if (index + 2 < mFrames.size()) {
+            requestFrame(mFrames.get(index + 2));
+        }
+        trimCache();
+    }
+
+    /**
+     * Encodes the edits of a frame on the worker thread, if there are any,
+     * and passes its PNG data to the listener.
+     */
+    public void requestEncodedFrame(final int index, final OnFrameEncodedListener listener) {
+        final Frame frame = mFrames.get(index);
+        if (index == mCurrent) {
+            storeCurrent();
+        }
+        final int[] pixels = (frame.mIsDirty) ? frame.mPixels.clone() : null;
+        frame.mIsDirty = false;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Any encoding after an eviction has run before, so mEncoded is the latest.
+                if (pixels != null) {
+                    frame.mEncoded = encodePixels(pixels);
+                }
+                final byte[] encoded = frame.mEncoded;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFrameEncoded(FrameStrip.this, index, encoded);
+                    }
+                });
+            }
+        });
+    }
+
+    public void close() {
+        mExecutor.shutdown();
+        mBuffer.removeChangeListener(this);
+        mPrevBitmap.recycle();
+        mNextBitmap.recycle();
+    }
+
+    @Override
+    public void onPixelChanged(int index, int oldColor, int newColor) {
+        mIsEdited = true;
+    }
+
+    @Override
+    public void onPixelsChanged(int index, int count,
+            int[] oldColors, int oldOffset, int[] newColors, int newOffset) {
+        for (int i = 0; i < count && !mIsEdited; i++) {
+            if (oldColors[oldOffset + i] != newColors[newOffset + i]) {
+                mIsEdited = true;
+            }
+        }
+    }
+
+    @Override
+    public void onPixelsReplaced() {
+        mIsEdited = true;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void storeCurrent() {
+        if (mCurrent < 0 || !mIsEdited || mIsCurrentPending) {
+            return;
+        }
+        Frame frame = mFrames.get(mCurrent);
+        System.arraycopy(mBuffer.getPixels(), 0, frame.mPixels, 0, frame.mPixels.length);
+        frame.mIsDirty = true;
+        mIsEdited = false;
+    }
+
+    private void loadCurrent() {
+        Frame frame = mFrames.get(mCurrent);
+        if (frame.mPixels == null && frame.mEvicted != null) {
+            // Its encoding is not finished, so the pixels are the latest. Any
+            // encoding is redone later from the edits, since it is marked dirty.
+            frame.mPixels = frame.mEvicted;
+            frame.mEvicted = null;
+            frame.mIsDirty = true;
+            mCache.put(frame, Boolean.TRUE);
+        } else if (frame.mPixels != null) {
+            mCache.get(frame);
+        }
+        mIsCurrentPending = (frame.mPixels == null);
+        if (mIsCurrentPending) {
+            // The previous pixels stay until onFrameDecoded().
+            requestFrame(frame);
+            return;
+        }
+        mBuffer.replacePixels(frame.mPixels);
+        mIsEdited = false;
+    }
+
+    private void refreshNeighbors() {
+        showNeighbor(mCurrent - 1, mPrevBitmap);
+        showNeighbor(mCurrent + 1, mNextBitmap);
+        if (mView != null) {
+            mView.invalidateUnit(0, 0, mWidth - 1, mHeight - 1);
+        }
+    }
+
+    private void showNeighbor(int index, Bitmap bmp) {
+        Frame frame = (index >= 0 && index < mFrames.size()) ? mFrames.get(index) : null;
+        if (frame != null && frame.mPixels != null) {
+            mCache.get(frame);
+            bmp.setPixels(frame.mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        } else {
+            bmp.eraseColor(0);
+            if (frame != null) {
+                requestFrame(frame);
+            }
+        }
+    }
+
+    private void requestFrame(final Frame frame) {
+        if (frame.mPixels != null || frame.mIsLoading) {
+            return;
+        }
+        frame.mIsLoading = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] pixels = decode(frame.mEncoded);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrameDecoded(frame, pixels);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onFrameDecoded(Frame frame, int[] pixels) {
+        frame.mIsLoading = false;
+        int index = mFrames.indexOf(frame);
+        if (index < 0 || frame.mPixels != null) {
+            releasePixels(pixels);
+            return;
+        }
+        frame.mPixels = pixels;
+        mCache.put(frame, Boolean.TRUE);
+        if (index == mCurrent && mIsCurrentPending) {
+            mIsCurrentPending = false;
+            mBuffer.replacePixels(pixels);
+            mIsEdited = false;
+        } else if (Math.abs(index - mCurrent) == 1) {
+            refreshNeighbors();
+        }
+        trimCache();
+    }
+
+    private void trimCache() {
+        Iterator<Frame> it = mCache.keySet().iterator();
+        while (mCache.size() > mMaxFrames && it.hasNext()) {
+            final Frame frame = it.next();
+            int index = mFrames.indexOf(frame);
+            if (index >= 0 && Math.abs(index - mCurrent) <= 1) {
+                continue;
+            }
+            it.remove();
+            final int[] pixels = frame.mPixels;
+            frame.mPixels = null;
+            if (!frame.mIsDirty || index < 0) {
+                releasePixels(pixels);
+            } else {
+                frame.mIsDirty = false;
+                frame.mEvicted = pixels;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        frame.mEncoded = encodePixels(pixels);
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Unless loadCurrent() took them back meanwhile.
+                                if (frame.mEvicted == pixels) {
+                                    frame.mEvicted = null;
+                                    releasePixels(pixels);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }
+    }
+
+    /* Called only on the worker thread. */
+    private int[] decode(byte[] encoded) {
+        int[] pixels = obtainPixels();
+        Bitmap bmp = null;
+        if (encoded != null) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            bmp = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, opts);
+        }
+        if (bmp == null || bmp.getWidth() < mWidth || bmp.getHeight() < mHeight) {
+            Arrays.fill(pixels, 0);
+        }
+        if (bmp != null) {
+            bmp.getPixels(pixels, 0, mWidth, 0, 0,
+                    Math.min(bmp.getWidth(), mWidth), Math.min(bmp.getHeight(), mHeight));
+            bmp.recycle();
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns a pooled pixel array, whose contents are left over, or a new one.
+     */
+    private int[] obtainPixels() {
+        synchronized (mPool) {
+            if (!mPool.isEmpty()) {
+                return mPool.remove(mPool.size() - 1);
+            }
+        }
+        return new int[mWidth * mHeight];
+    }
+
+    private void releasePixels(int[] pixels) {
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED) {
+                mPool.add(pixels);
+            }
+        }
+    }
+
+    /* Called only on the worker thread. */
+    private byte[] encodePixels(int[] pixels) {
+        if (mEncodeBitmap == null) {
+            mEncodeBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        }
+        mEncodeBitmap.setPixels(pixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        return encode(mEncodeBitmap);
+    }
+
+    private static byte[] encode(Bitmap bmp) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+}
@@ -16,7 +16,13 @@
 
 package com.obnsoft.view;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.FocusFinder;
@@ -40,6 +46,7 @@ public class FreeScrollView extends FrameLayout {
 
     private final Rect mTempRect = new Rect();
     private Scroller mScroller;
+    private FlingEngine mFlingEngine;
 
     /**
      * The application environment this view lives in.
@@ -104,6 +111,122 @@ public class FreeScrollView extends FrameLayout {
      */
     private static final int INVALID_POINTER = -1;
 
+    /**
+     * Supplies the content as a grid of tiles of the same size, instead of one
+     * child. Only the tiles near the viewport have views.
+     */
+    public interface TileAdapter {
+        public int getContentWidth();
+        public int getContentHeight();
+        public int getTileWidth();
+        public int getTileHeight();
+        /**
+         * Returns the view of a tile. convertView is a view returned before for
+         * another tile which may be reused, or null.
+         */
+        public View getTileView(int col, int row, View convertView, ViewGroup parent);
+    }
+
+    /**
+     * Told where a fling goes as soon as it starts, so that the content there
+     * can be prepared before it is shown. A TileAdapter implementing this is
+     * told as well.
+     */
+    public interface OnFlingPrefetchListener {
+        /**
+         * Rectangles are viewports in content coordinates, clipped to the content.
+         *
+         * @param landing the viewport where the fling stops.
+         * @param path viewports along the way, in the order they are passed, which
+         *             cover the path together; the array is reused.
+         */
+        public void onFlingPrefetch(FreeScrollView view, Rect landing, Rect[] path, int pathCount);
+    }
+
+    /**
+     * Told of changes of the viewport at most once a frame, however many times
+     * it is scrolled within the frame.
+     */
+    public interface OnViewportChangeListener {
+        /**
+         * @param viewport the visible area in content coordinates; reused.
+         * @param velocityX pixels per second since the last call, or 0 when idle.
+         * @param state one of the SCROLL_STATE_ constants.
+         */
+        public void onViewportChanged(FreeScrollView view, Rect viewport,
+                float velocityX, float velocityY, int state);
+    }
+
+    public static final int SCROLL_STATE_IDLE = 0;
+    public static final int SCROLL_STATE_DRAGGING = 1;
+    /** Moving on its own, by a fling or a smooth scroll. */
+    public static final int SCROLL_STATE_FLINGING = 2;
+
+    private OnViewportChangeListener mViewportListener;
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private boolean mIsViewportPending;
+    private final Rect mViewportRect = new Rect();
+    private int mViewportX;
+    private int mViewportY;
+    private long mViewportTime;
+    private final Runnable mViewportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchViewportChange();
+        }
+    };
+
+    /**
+     * Told when a pinch zoom has settled, so that the content can be rendered
+     * again at the new zoom.
+     */
+    public interface OnZoomListener {
+        /**
+         * Until the content is laid out again at the zoom and
+         * {@link FreeScrollView#setRenderedZoom(float)} is called, it is drawn
+         * scaled from the size it has.
+         */
+        public void onZoomSettled(FreeScrollView view, float zoom);
+    }
+
+    private ScaleRotateGestureDetector mZoomDetector;
+    private OnZoomListener mZoomListener;
+    private boolean mIsZooming;
+    private float mZoom = 1f;
+    private float mMinZoom = 0.25f;
+    private float mMaxZoom = 4f;
+    private float mRenderedZoom = 1f;
+    private float mPendingRenderedZoom;
+    private float mZoomFocusX;
+    private float mZoomFocusY;
+    /* The fraction dropped from the scroll position set last by scrollToExactly(). */
+    private int mExactScrollX;
+    private int mExactScrollY;
+    private float mScrollFractionX;
+    private float mScrollFractionY;
+    private MotionEvent mRawEvent;
+    private final Runnable mZoomSettleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mZoomListener != null) {
+                mZoomListener.onZoomSettled(FreeScrollView.this, mZoom);
+            }
+        }
+    };
+
+    private static final int MAX_PREFETCH_STEPS = 16;
+
+    private OnFlingPrefetchListener mPrefetchListener;
+    private final Rect mPrefetchLanding = new Rect();
+    private Rect[] mPrefetchPath = new Rect[0];
+
+    private TileAdapter mAdapter;
+    private int mTileMargin = 1;
+    private final Rect mBoundTiles = new Rect();
+    private final Rect mTileRect = new Rect();
+    private final HashMap<Long, View> mTileViews = new HashMap<Long, View>();
+    private final ArrayList<View> mRecycledTiles = new ArrayList<View>();
+
     public FreeScrollView(Context context) {
         this(context, null);
     }
@@ -123,7 +246,7 @@ public class FreeScrollView extends FrameLayout {
 
     @Override
     protected float getTopFadingEdgeStrength() {
-        if (getChildCount() == 0) {
+        if (!hasContent()) {
             return 0.0f;
         }
 
@@ -137,13 +260,13 @@ public class FreeScrollView extends FrameLayout {
 
     @Override
     protected float getBottomFadingEdgeStrength() {
-        if (getChildCount() == 0) {
+        if (!hasContent()) {
             return 0.0f;
         }
 
         final int length = getVerticalFadingEdgeLength();
         final int bottomEdge = getHeight() - getPaddingBottom();
-        final int span = getChildAt(0).getBottom() - getScrollY() - bottomEdge;
+        final int span = getContentBottom() - getScrollY() - bottomEdge;
         if (span < length) {
             return span / (float) length;
         }
@@ -153,7 +276,7 @@ public class FreeScrollView extends FrameLayout {
 
     @Override
     protected float getLeftFadingEdgeStrength() {
-        if (getChildCount() == 0) {
+        if (!hasContent()) {
             return 0.0f;
         }
 
@@ -167,13 +290,13 @@ public class FreeScrollView extends FrameLayout {
 
     @Override
     protected float getRightFadingEdgeStrength() {
-        if (getChildCount() == 0) {
+        if (!hasContent()) {
             return 0.0f;
         }
 
         final int length = getHorizontalFadingEdgeLength();
         final int rightEdge = getWidth() - getPaddingRight();
-        final int span = getChildAt(0).getRight() - getScrollX() - rightEdge;
+        final int span = getContentRight() - getScrollX() - rightEdge;
         if (span < length) {
             return span / (float) length;
         }
@@ -249,9 +372,8 @@ public class FreeScrollView extends FrameLayout {
      * @return Returns true this ScrollView can be scrolled in X direction
      */
     private boolean canScrollX() {
-        View child = getChildAt(0);
-        if (child != null) {
-            int childWidth = child.getWidth();
+        if (hasContent()) {
+            int childWidth = getContentWidth();
             return getWidth() < childWidth + getPaddingLeft() + getPaddingRight();
         }
         return false;
@@ -261,9 +383,8 @@ public class FreeScrollView extends FrameLayout {
      * @return Returns true this ScrollView can be scrolled in Y direction
      */
     private boolean canScrollY() {
-        View child = getChildAt(0);
-        if (child != null) {
-            int childHeight = child.getHeight();
+        if (hasContent()) {
+            int childHeight = getContentHeight();
             return getHeight() < childHeight + getPaddingTop() + getPaddingBottom();
         }
         return false;
@@ -307,8 +428,134 @@ public class FreeScrollView extends FrameLayout {
         mSmoothScrollingEnabled = smoothScrollingEnabled;
     }
 
+    /**
+     * Shows the content of the adapter in place of the child, which is removed.
+     * Tile views are reused as the view scrolls, so memory and layout cost follow
+     * the size of the viewport rather than that of the content. Null goes back
+     * to hosting one child.
+     */
+    public void setTileAdapter(TileAdapter adapter) {
+        removeAllViewsInLayout();
+        mTileViews.clear();
+        mRecycledTiles.clear();
+        mBoundTiles.setEmpty();
+        mAdapter = adapter;
+        requestLayout();
+        invalidate();
+    }
+
+    public TileAdapter getTileAdapter() {
+        return mAdapter;
+    }
+
+    public void setOnFlingPrefetchListener(OnFlingPrefetchListener listener) {
+        mPrefetchListener = listener;
+    }
+
+    /**
+     * Lets two fingers zoom the content, anchored at their focal point. The
+     * content is scaled at draw time while zooming, without being laid out again.
+     */
+    public void setZoomEnabled(boolean enabled) {
+        if (enabled && mZoomDetector == null) {
+            mZoomDetector = new ScaleRotateGestureDetector(getContext(), mZoomGestureListener);
+        } else if (!enabled) {
+            mZoomDetector = null;
+        }
+    }
+
+    public void setZoomRange(float minZoom, float maxZoom) {
+        if (minZoom <= 0f || maxZoom < minZoom) {
+            throw new IllegalArgumentException("Invalid zoom range");
+        }
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        setZoom(mZoom);
+    }
+
+    public float getZoom() {
+        return mZoom;
+    }
+
+    /**
+     * Zooms anchored at the center of the viewport.
+     */
+    public void setZoom(float zoom) {
+        zoomTo(zoom, getWidth() / 2f, getHeight() / 2f);
+        settleZoom();
+    }
+
+    /**
+     * Tells that the content is now laid out for the zoom, so that it is no
+     * longer scaled by the difference. Takes effect at the next layout, which
+     * also reads the new size of the content.
+     */
+    public void setRenderedZoom(float zoom) {
+        if (zoom <= 0f) {
+            throw new IllegalArgumentException("zoom must be positive");
+        }
+        mPendingRenderedZoom = zoom;
+        requestLayout();
+    }
+
+    public void setOnZoomListener(OnZoomListener listener) {
+        mZoomListener = listener;
+    }
+
+    /**
+     * Uses the engine for flings instead of {@link Scroller}, or goes back to
+     * it with null.
+     */
+    public void setFlingEngine(FlingEngine engine) {
+        abortScroll();
+        mFlingEngine = engine;
+    }
+
+    public FlingEngine getFlingEngine() {
+        return mFlingEngine;
+    }
+
+    public void setOnViewportChangeListener(OnViewportChangeListener listener) {
+        mViewportListener = listener;
+        mViewportTime = 0;
+        requestViewportChange();
+    }
+
+    /**
+     * @return one of the SCROLL_STATE_ constants.
+     */
+    public int getScrollState() {
+        return mScrollState;
+    }
+
+    /**
+     * Sets how many tiles around the viewport have views, so that they are
+     * ready before they are scrolled in. The default is 1.
+     */
+    public void setTileMargin(int tiles) {
+        mTileMargin = Math.max(tiles, 0);
+        updateTiles(false);
+    }
+
+    /**
+     * Binds the views of all tiles again, such as after the data changed.
+     * The content size is read again as well.
+     */
+    public void notifyTilesChanged() {
+        if (mAdapter != null) {
+            retargetFling();
+            scrollTo(getScrollX(), getScrollY());
+            updateTiles(true);
+        }
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mAdapter != null) {
+            setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                    getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec));
+            return;
+        }
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 
         if (!mFillViewport) {
@@ -417,20 +664,68 @@ public class FreeScrollView extends FrameLayout {
     }
 
     private boolean inChild(int x, int y) {
+        if (mAdapter != null) {
+            return !(x < getPaddingLeft() - getScrollX()
+                    || x >= getContentRight() - getScrollX()
+                    || y < getPaddingTop() - getScrollY()
+                    || y >= getContentBottom() - getScrollY());
+        }
         if (getChildCount() > 0) {
             final int scrollX = getScrollX();
             final int scrollY = getScrollY();
             final View child = getChildAt(0);
-            return !(x < child.getLeft() - scrollX
-                    || x >= child.getRight() - scrollX
-                    || y < child.getTop() - scrollY
-                    || y >= child.getBottom() - scrollY);
+            mTempRect.set(child.getLeft(), child.getTop(), child.getRight(), child.getBottom());
+            toDisplayRect(mTempRect);
+            return !(x < mTempRect.left - scrollX
+                    || x >= mTempRect.right - scrollX
+                    || y < mTempRect.top - scrollY
+                    || y >= mTempRect.bottom - scrollY);
         }
         return false;
     }
 
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent ev) {
+        final int action = ev.getAction() & MotionEvent.ACTION_MASK;
+        if (mZoomDetector != null) {
+            mZoomDetector.onTouchEvent(ev);
+            if (mIsZooming) {
+                if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    mIsZooming = false;
+                    settleZoom();
+                }
+                return true;
+            }
+        }
+        final float scale = getDrawScale();
+        if (scale == 1f) {
+            return super.dispatchTouchEvent(ev);
+        }
+
+        /*
+         * Children are laid out unscaled, so they are given the position in
+         * their own coordinates, while the scrolling here keeps the raw one.
+         * Only the first pointer is mapped exactly.
+         */
+        final MotionEvent event = MotionEvent.obtain(ev);
+        event.setLocation(
+                (ev.getX() + getScrollX() - getPaddingLeft()) / scale + getPaddingLeft() - getScrollX(),
+                (ev.getY() + getScrollY() - getPaddingTop()) / scale + getPaddingTop() - getScrollY());
+        mRawEvent = ev;
+        try {
+            return super.dispatchTouchEvent(event);
+        } finally {
+            mRawEvent = null;
+            event.recycle();
+        }
+    }
+
     @Override
     public boolean onInterceptTouchEvent(MotionEvent ev) {
+        if (mRawEvent != null) {
+            ev = mRawEvent;
+        }
+
         /*
          * This method JUST determines whether we want to intercept the motion.
          * If we return true, onMotionEvent will be called and we do the actual
@@ -473,6 +768,7 @@ public class FreeScrollView extends FrameLayout {
                     mIsBeingDragged = true;
                     mLastMotionX = x;
                     mLastMotionY = y;
+                    setScrollState(SCROLL_STATE_DRAGGING);
                 }
                 break;
             }
@@ -498,7 +794,10 @@ public class FreeScrollView extends FrameLayout {
                 * otherwise don't.  mScroller.isFinished should be false when
                 * being flinged.
                 */
-                mIsBeingDragged = !mScroller.isFinished();
+                mIsBeingDragged = !isScrollFinished();
+                if (mIsBeingDragged) {
+                    setScrollState(SCROLL_STATE_DRAGGING);
+                }
                 break;
             }
 
@@ -507,6 +806,9 @@ public class FreeScrollView extends FrameLayout {
                 /* Release the drag */
                 mIsBeingDragged = false;
                 mActivePointerId = INVALID_POINTER;
+                if (mScrollState == SCROLL_STATE_DRAGGING) {
+                    setScrollState(SCROLL_STATE_IDLE);
+                }
                 break;
             case MotionEvent.ACTION_POINTER_UP:
                 onSecondaryPointerUp(ev);
@@ -522,6 +824,9 @@ public class FreeScrollView extends FrameLayout {
 
     @Override
     public boolean onTouchEvent(MotionEvent ev) {
+        if (mRawEvent != null) {
+            ev = mRawEvent;
+        }
 
         if (ev.getAction() == MotionEvent.ACTION_DOWN && ev.getEdgeFlags() != 0) {
             // Don't handle edge touches immediately -- they may actually belong to one of our
@@ -548,9 +853,8 @@ public class FreeScrollView extends FrameLayout {
                  * If being flinged and user touches, stop the fling. isFinished
                  * will be false if being flinged.
                  */
-                if (!mScroller.isFinished()) {
-                    mScroller.abortAnimation();
-                }
+                abortScroll();
+                setScrollState(SCROLL_STATE_DRAGGING);
 
                 // Remember where the motion event started
                 mLastMotionX = x;
@@ -579,7 +883,7 @@ public class FreeScrollView extends FrameLayout {
                     int initialXVelocity = (int) velocityTracker.getXVelocity(mActivePointerId);
                     int initialYVelocity = (int) velocityTracker.getYVelocity(mActivePointerId);
 
-                    if (getChildCount() > 0) {
+                    if (hasContent()) {
                         if (Math.abs(initialXVelocity) <= mMinimumVelocity) {
                             initialXVelocity = 0;
                         }
@@ -593,6 +897,9 @@ public class FreeScrollView extends FrameLayout {
 
                     mActivePointerId = INVALID_POINTER;
                     mIsBeingDragged = false;
+                    if (mScrollState == SCROLL_STATE_DRAGGING) {
+                        setScrollState(SCROLL_STATE_IDLE);
+                    }
 
                     if (mVelocityTracker != null) {
                         mVelocityTracker.recycle();
@@ -601,9 +908,10 @@ public class FreeScrollView extends FrameLayout {
                 }
                 break;
             case MotionEvent.ACTION_CANCEL:
-                if (mIsBeingDragged && getChildCount() > 0) {
+                if (mIsBeingDragged && hasContent()) {
                     mActivePointerId = INVALID_POINTER;
                     mIsBeingDragged = false;
+                    setScrollState(SCROLL_STATE_IDLE);
                     if (mVelocityTracker != null) {
                         mVelocityTracker.recycle();
                         mVelocityTracker = null;
@@ -653,11 +961,10 @@ public class FreeScrollView extends FrameLayout {
 
         if (right) {
             mTempRect.left = getScrollX() + width;
-            int count = getChildCount();
-            if (count > 0) {
-                View view = getChildAt(count - 1);
-                if (mTempRect.left + width > view.getRight()) {
-                    mTempRect.left = view.getRight() - width;
+            if (hasContent()) {
+                int contentRight = getContentRight();
+                if (mTempRect.left + width > contentRight) {
+                    mTempRect.left = contentRight - width;
                 }
             }
         } else {
@@ -689,11 +996,10 @@ public class FreeScrollView extends FrameLayout {
 
         if (down) {
             mTempRect.top = getScrollY() + height;
-            int count = getChildCount();
-            if (count > 0) {
-                View view = getChildAt(count - 1);
-                if (mTempRect.top + height > view.getBottom()) {
-                    mTempRect.top = view.getBottom() - height;
+            if (hasContent()) {
+                int contentBottom = getContentBottom();
+                if (mTempRect.top + height > contentBottom) {
+                    mTempRect.top = contentBottom - height;
                 }
             }
         } else {
@@ -727,10 +1033,8 @@ public class FreeScrollView extends FrameLayout {
         mTempRect.right = width;
 
         if (right) {
-            int count = getChildCount();
-            if (count > 0) {
-                View view = getChildAt(count - 1);
-                mTempRect.right = view.getRight();
+            if (hasContent()) {
+                mTempRect.right = getContentRight();
                 mTempRect.left = mTempRect.right - width;
             }
         }
@@ -759,10 +1063,8 @@ public class FreeScrollView extends FrameLayout {
         mTempRect.bottom = height;
 
         if (down) {
-            int count = getChildCount();
-            if (count > 0) {
-                View view = getChildAt(count - 1);
-                mTempRect.bottom = view.getBottom();
+            if (hasContent()) {
+                mTempRect.bottom = getContentBottom();
                 mTempRect.top = mTempRect.bottom - height;
             }
         }
@@ -790,6 +1092,7 @@ public class FreeScrollView extends FrameLayout {
                 getWidth(), getHeight())) {
             nextFocused.getDrawingRect(mTempRect);
             offsetDescendantRectToMyCoords(nextFocused, mTempRect);
+            toDisplayRect(mTempRect);
             int scrollDelta = computeScrollDeltaToGetChildRectOnScreenX(mTempRect);
             doScroll(scrollDelta, 0);
             nextFocused.requestFocus(direction);
@@ -800,8 +1103,8 @@ public class FreeScrollView extends FrameLayout {
             if (direction == View.FOCUS_LEFT && getScrollX() < scrollDelta) {
                 scrollDelta = getScrollX();
             } else if (direction == View.FOCUS_RIGHT) {
-                if (getChildCount() > 0) {
-                    int daRight = getChildAt(0).getRight();
+                if (hasContent()) {
+                    int daRight = getContentRight();
     
                     int screenRight = getScrollX() + getRight();
     
@@ -851,6 +1154,7 @@ public class FreeScrollView extends FrameLayout {
                 getWidth(), getHeight())) {
             nextFocused.getDrawingRect(mTempRect);
             offsetDescendantRectToMyCoords(nextFocused, mTempRect);
+            toDisplayRect(mTempRect);
             int scrollDelta = computeScrollDeltaToGetChildRectOnScreenY(mTempRect);
             doScroll(0, scrollDelta);
             nextFocused.requestFocus(direction);
@@ -861,8 +1165,8 @@ public class FreeScrollView extends FrameLayout {
             if (direction == View.FOCUS_UP && getScrollY() < scrollDelta) {
                 scrollDelta = getScrollY();
             } else if (direction == View.FOCUS_DOWN) {
-                if (getChildCount() > 0) {
-                    int daBottom = getChildAt(0).getBottom();
+                if (hasContent()) {
+                    int daBottom = getContentBottom();
     
                     int screenBottom = getScrollY() + getHeight();
     
@@ -908,6 +1212,7 @@ public class FreeScrollView extends FrameLayout {
             int width, int height) {
         descendant.getDrawingRect(mTempRect);
         offsetDescendantRectToMyCoords(descendant, mTempRect);
+        toDisplayRect(mTempRect);
 
         return (mTempRect.right + xDelta) >= getScrollX()
                 && (mTempRect.left - xDelta) <= (getScrollX() + width)
@@ -937,7 +1242,7 @@ public class FreeScrollView extends FrameLayout {
      * @param dy the number of pixels to scroll by on the Y axis
      */
     public final void smoothScrollBy(int dx, int dy) {
-        if (getChildCount() == 0) {
+        if (!hasContent()) {
             // Nothing to do.
             return;
         }
@@ -945,8 +1250,8 @@ public class FreeScrollView extends FrameLayout {
         if (duration > ANIMATED_SCROLL_GAP) {
             final int width = getWidth() - getPaddingRight() - getPaddingLeft();
             final int height = getHeight() - getPaddingBottom() - getPaddingTop();
-            final int right = getChildAt(0).getWidth();
-            final int bottom = getChildAt(0).getHeight();
+            final int right = getContentWidth();
+            final int bottom = getContentHeight();
             final int maxX = Math.max(0, right - width);
             final int maxY = Math.max(0, bottom - height);
             final int scrollX = getScrollX();
@@ -954,12 +1259,13 @@ public class FreeScrollView extends FrameLayout {
             dx = Math.max(0, Math.min(scrollX + dx, maxX)) - scrollX;
             dy = Math.max(0, Math.min(scrollY + dy, maxY)) - scrollY;
 
+            // A fling of the engine would go on after the scroll otherwise.
+            abortScroll();
             mScroller.startScroll(scrollX, scrollY, dx, dy);
+            setScrollState(SCROLL_STATE_FLINGING);
             invalidate();
         } else {
-            if (!mScroller.isFinished()) {
-                mScroller.abortAnimation();
-            }
+            abortScroll();
             scrollBy(dx, dy);
         }
         mLastScroll = AnimationUtils.currentAnimationTimeMillis();
@@ -981,13 +1287,12 @@ public class FreeScrollView extends FrameLayout {
      */
     @Override
     protected int computeHorizontalScrollRange() {
-        final int count = getChildCount();
         final int contentWidth = getWidth() - getPaddingRight() - getPaddingLeft();
-        if (count == 0) {
+        if (!hasContent()) {
             return contentWidth;
         }
         
-        return getChildAt(0).getRight();
+        return getContentRight();
     }
 
     /**
@@ -996,13 +1301,12 @@ public class FreeScrollView extends FrameLayout {
      */
     @Override
     protected int computeVerticalScrollRange() {
-        final int count = getChildCount();
         final int contentHeight = getHeight() - getPaddingBottom() - getPaddingTop();
-        if (count == 0) {
+        if (!hasContent()) {
             return contentHeight;
         }
         
-        return getChildAt(0).getBottom();
+        return getContentBottom();
     }
 
     @Override
@@ -1048,6 +1352,13 @@ public class FreeScrollView extends FrameLayout {
 
             // Keep on drawing until the animation has finished.
             postInvalidate();
+        } else if (mFlingEngine != null
+                && mFlingEngine.computeOffset(AnimationUtils.currentAnimationTimeMillis())) {
+            scrollTo(mFlingEngine.getCurrX(), mFlingEngine.getCurrY());
+            awakenScrollBars();
+            postInvalidate();
+        } else if (mScrollState == SCROLL_STATE_FLINGING) {
+            setScrollState(SCROLL_STATE_IDLE);
         }
     }
 
@@ -1061,6 +1372,7 @@ public class FreeScrollView extends FrameLayout {
 
         /* Offset from child's local coordinates to ScrollView coordinates */
         offsetDescendantRectToMyCoords(child, mTempRect);
+        toDisplayRect(mTempRect);
 
         int scrollXDelta = computeScrollDeltaToGetChildRectOnScreenX(mTempRect);
         int scrollYDelta = computeScrollDeltaToGetChildRectOnScreenY(mTempRect);
@@ -1101,7 +1413,7 @@ public class FreeScrollView extends FrameLayout {
      * @return The scroll delta.
      */
     protected int computeScrollDeltaToGetChildRectOnScreenX(Rect rect) {
-        if (getChildCount() == 0) return 0;
+        if (!hasContent()) return 0;
 
         int width = getWidth();
         int screenLeft = getScrollX();
@@ -1115,7 +1427,7 @@ public class FreeScrollView extends FrameLayout {
         }
 
         // leave room for right fading edge as long as rect isn't at very right
-        if (rect.right < getChildAt(0).getWidth()) {
+        if (rect.right < getContentWidth()) {
             screenRight -= fadingEdge;
         }
 
@@ -1135,7 +1447,7 @@ public class FreeScrollView extends FrameLayout {
             }
 
             // make sure we aren't scrolling beyond the end of our content
-            int right = getChildAt(0).getRight();
+            int right = getContentRight();
             int distanceToRight = right - screenRight;
             scrollXDelta = Math.min(scrollXDelta, distanceToRight);
 
@@ -1167,7 +1479,7 @@ public class FreeScrollView extends FrameLayout {
      * @return The scroll delta.
      */
     protected int computeScrollDeltaToGetChildRectOnScreenY(Rect rect) {
-        if (getChildCount() == 0) return 0;
+        if (!hasContent()) return 0;
 
         int height = getHeight();
         int screenTop = getScrollY();
@@ -1181,7 +1493,7 @@ public class FreeScrollView extends FrameLayout {
         }
 
         // leave room for bottom fading edge as long as rect isn't at very bottom
-        if (rect.bottom < getChildAt(0).getHeight()) {
+        if (rect.bottom < getContentHeight()) {
             screenBottom -= fadingEdge;
         }
 
@@ -1201,7 +1513,7 @@ public class FreeScrollView extends FrameLayout {
             }
 
             // make sure we aren't scrolling beyond the end of our content
-            int bottom = getChildAt(0).getBottom();
+            int bottom = getContentBottom();
             int distanceToBottom = bottom - screenBottom;
             scrollYDelta = Math.min(scrollYDelta, distanceToBottom);
 
@@ -1265,12 +1577,25 @@ public class FreeScrollView extends FrameLayout {
         // offset into coordinate space of this scroll view
         rectangle.offset(child.getLeft() - child.getScrollX(),
                 child.getTop() - child.getScrollY());
+        toDisplayRect(rectangle);
 
         return scrollToChildRect(rectangle, immediate);
     }
 
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        final boolean isRendered = (mPendingRenderedZoom > 0f);
+        if (isRendered) {
+            mRenderedZoom = mPendingRenderedZoom;
+            mPendingRenderedZoom = 0f;
+            invalidate();
+        }
+        if (mAdapter != null) {
+            retargetFling();
+            scrollTo(getScrollX(), getScrollY());
+            updateTiles(isRendered);
+            return;
+        }
         super.onLayout(changed, l, t, r, b);
 
         // Give a child focus if it needs it 
@@ -1280,9 +1605,41 @@ public class FreeScrollView extends FrameLayout {
         mChildToScrollTo = null;
 
         // Calling this with the present values causes it to re-clam them
+        retargetFling();
         scrollTo(getScrollX(), getScrollY());
     }
 
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        final float scale = getDrawScale();
+        if (scale == 1f) {
+            super.dispatchDraw(canvas);
+            return;
+        }
+        canvas.save();
+        canvas.scale(scale, scale, getPaddingLeft(), getPaddingTop());
+        super.dispatchDraw(canvas);
+        canvas.restore();
+    }
+
+    @Override
+    public ViewParent invalidateChildInParent(int[] location, Rect dirty) {
+        if (getDrawScale() != 1f) {
+            // The dirty rectangle of a child is unscaled.
+            dirty.offset(location[0], location[1]);
+            toDisplayRect(dirty);
+            dirty.offset(-location[0], -location[1]);
+        }
+        return super.invalidateChildInParent(location, dirty);
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        updateTiles(false);
+        requestViewportChange();
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
@@ -1297,6 +1654,7 @@ public class FreeScrollView extends FrameLayout {
         if (isWithinDeltaOfScreen(currentFocused, 0, 0, oldw, oldh)) {
             currentFocused.getDrawingRect(mTempRect);
             offsetDescendantRectToMyCoords(currentFocused, mTempRect);
+            toDisplayRect(mTempRect);
             int scrollXDelta = computeScrollDeltaToGetChildRectOnScreenX(mTempRect);
             int scrollYDelta = computeScrollDeltaToGetChildRectOnScreenY(mTempRect);
             doScroll(scrollXDelta, scrollYDelta);
@@ -1323,15 +1681,28 @@ public class FreeScrollView extends FrameLayout {
      *                  which means we want to scroll towards the top.
      */
     public void fling(int velocityX, int velocityY) {
-        if (getChildCount() > 0) {
+        if (hasContent()) {
             int width = getWidth() - getPaddingRight() - getPaddingLeft();
             int height = getHeight() - getPaddingBottom() - getPaddingTop();
-            int right = getChildAt(0).getWidth();
-            int bottom = getChildAt(0).getHeight();
-
-            mScroller.fling(getScrollX(), getScrollY(), velocityX, velocityY,
-                    0, Math.max(0, right - width),
-                    0, Math.max(0, bottom - height));
+            int right = getContentWidth();
+            int bottom = getContentHeight();
+
+            int finalX, finalY;
+            if (mFlingEngine != null) {
+                mFlingEngine.fling(getScrollX(), getScrollY(), velocityX, velocityY,
+                        0, Math.max(0, right - width), 0, Math.max(0, bottom - height),
+                        AnimationUtils.currentAnimationTimeMillis());
+                finalX = mFlingEngine.getFinalX();
+                finalY = mFlingEngine.getFinalY();
+            } else {
+                mScroller.fling(getScrollX(), getScrollY(), velocityX, velocityY,
+                        0, Math.max(0, right - width),
+                        0, Math.max(0, bottom - height));
+                finalX = mScroller.getFinalX();
+                finalY = mScroller.getFinalY();
+            }
+            setScrollState(SCROLL_STATE_FLINGING);
+            notifyFlingPrefetch(getScrollX(), getScrollY(), finalX, finalY);
             invalidate();
         }
     }
@@ -1344,14 +1715,374 @@ public class FreeScrollView extends FrameLayout {
     @Override
     public void scrollTo(int x, int y) {
         // we rely on the fact the View.scrollBy calls scrollTo.
-        if (getChildCount() > 0) {
-            View child = getChildAt(0);
-            x = clamp(x, getWidth() - getPaddingRight() - getPaddingLeft(), child.getWidth());
-            y = clamp(y, getHeight() - getPaddingBottom() - getPaddingTop(), child.getHeight());
+        if (hasContent()) {
+            x = clamp(x, getWidth() - getPaddingRight() - getPaddingLeft(), getContentWidth());
+            y = clamp(y, getHeight() - getPaddingBottom() - getPaddingTop(), getContentHeight());
             super.scrollTo(x, y);
         }
     }
 
+    /**
+     * Reports the viewport at the end of a fling, and viewports spaced at most
+     * one viewport apart along its straight path.
+     */
+    private void notifyFlingPrefetch(int startX, int startY, int endX, int endY) {
+        final boolean isAdapterListening = (mAdapter instanceof OnFlingPrefetchListener);
+        if (mPrefetchListener == null && !isAdapterListening) {
+            return;
+        }
+        final int dx = endX - startX;
+        final int dy = endY - startY;
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+        final int width = Math.max(getWidth() - getPaddingRight() - getPaddingLeft(), 1);
+        final int height = Math.max(getHeight() - getPaddingBottom() - getPaddingTop(), 1);
+        final int contentWidth = getContentWidth();
+        final int contentHeight = getContentHeight();
+        int steps = Math.max(Math.abs(dx) / width, Math.abs(dy) / height);
+        steps = Math.min(steps, MAX_PREFETCH_STEPS);
+        if (mPrefetchPath.length < steps) {
+            Rect[] path = new Rect[steps];
+            System.arraycopy(mPrefetchPath, 0, path, 0, mPrefetchPath.length);
+            for (int i = mPrefetchPath.length; i < steps; i++) {
+                path[i] = new Rect();
+            }
+            mPrefetchPath = path;
+        }
+        int count = 0;
+        for (int i = 1; i <= steps; i++) {
+            int x = startX + (int) ((long) dx * i / (steps + 1));
+            int y = startY + (int) ((long) dy * i / (steps + 1));
+            Rect rect = mPrefetchPath[count];
+            rect.set(x, y, x + width, y + height);
+            if (rect.intersect(0, 0, contentWidth, contentHeight)) {
+                toContentRect(rect);
+                count++;
+            }
+        }
+        mPrefetchLanding.set(endX, endY, endX + width, endY + height);
+        mPrefetchLanding.intersect(0, 0, contentWidth, contentHeight);
+        toContentRect(mPrefetchLanding);
+
+        if (mPrefetchListener != null) {
+            mPrefetchListener.onFlingPrefetch(this, mPrefetchLanding, mPrefetchPath, count);
+        }
+        if (isAdapterListening) {
+            ((OnFlingPrefetchListener) mAdapter).onFlingPrefetch(this,
+                    mPrefetchLanding, mPrefetchPath, count);
+        }
+    }
+
+    private boolean isScrollFinished() {
+        return mScroller.isFinished() && (mFlingEngine == null || mFlingEngine.isFinished());
+    }
+
+    private void abortScroll() {
+        if (!mScroller.isFinished()) {
+            mScroller.abortAnimation();
+        }
+        if (mFlingEngine != null && !mFlingEngine.isFinished()) {
+            mFlingEngine.abort();
+        }
+    }
+
+    /**
+     * Keeps a fling of the engine within the content after its size changed.
+     */
+    private void retargetFling() {
+        if (mFlingEngine == null || mFlingEngine.isFinished() || !hasContent()) {
+            return;
+        }
+        final int maxX = Math.max(0,
+                getContentWidth() - (getWidth() - getPaddingRight() - getPaddingLeft()));
+        final int maxY = Math.max(0,
+                getContentHeight() - (getHeight() - getPaddingBottom() - getPaddingTop()));
+        final int finalX = mFlingEngine.getFinalX();
+        final int finalY = mFlingEngine.getFinalY();
+        if (finalX > maxX || finalY > maxY) {
+            mFlingEngine.retarget(Math.min(finalX, maxX), Math.min(finalY, maxY),
+                    AnimationUtils.currentAnimationTimeMillis());
+        }
+    }
+
+    private void setScrollState(int state) {
+        if (state != mScrollState) {
+            mScrollState = state;
+            requestViewportChange();
+        }
+    }
+
+    /**
+     * Schedules one call of the viewport listener for the changes made until
+     * the message queue is next processed, which is once a frame while scrolling.
+     */
+    private void requestViewportChange() {
+        if (mViewportListener != null && !mIsViewportPending) {
+            mIsViewportPending = true;
+            post(mViewportRunnable);
+        }
+    }
+
+    private void dispatchViewportChange() {
+        mIsViewportPending = false;
+        if (mViewportListener == null) {
+            return;
+        }
+        final int x = getScrollX();
+        final int y = getScrollY();
+        final long now = AnimationUtils.currentAnimationTimeMillis();
+        final long elapsed = now - mViewportTime;
+        float velocityX = 0f;
+        float velocityY = 0f;
+        if (mScrollState != SCROLL_STATE_IDLE && mViewportTime > 0 && elapsed > 0) {
+            velocityX = (x - mViewportX) * 1000f / elapsed;
+            velocityY = (y - mViewportY) * 1000f / elapsed;
+        }
+        mViewportX = x;
+        mViewportY = y;
+        mViewportTime = now;
+        mViewportRect.set(x, y, x + getWidth() - getPaddingLeft() - getPaddingRight(),
+                y + getHeight() - getPaddingTop() - getPaddingBottom());
+        toContentRect(mViewportRect);
+        mViewportListener.onViewportChanged(this, mViewportRect, velocityX, velocityY,
+                mScrollState);
+    }
+
+    private boolean hasContent() {
+        return (mAdapter != null || getChildCount() > 0);
+    }
+
+    /**
+     * @return the width of the child, or of the content of the adapter.
+     */
+    private int getContentWidth() {
+        int width = (mAdapter != null) ? mAdapter.getContentWidth() : getChildAt(0).getWidth();
+        return (int) (width * getDrawScale());
+    }
+
+    private int getContentHeight() {
+        int height = (mAdapter != null) ? mAdapter.getContentHeight() : getChildAt(0).getHeight();
+        return (int) (height * getDrawScale());
+    }
+
+    private int getContentRight() {
+        if (mAdapter != null) {
+            return getPaddingLeft() + getContentWidth();
+        }
+        int right = getChildAt(0).getRight();
+        return getPaddingLeft() + (int) ((right - getPaddingLeft()) * getDrawScale());
+    }
+
+    private int getContentBottom() {
+        if (mAdapter != null) {
+            return getPaddingTop() + getContentHeight();
+        }
+        int bottom = getChildAt(0).getBottom();
+        return getPaddingTop() + (int) ((bottom - getPaddingTop()) * getDrawScale());
+    }
+
+    /**
+     * @return the scale of the content at draw time, until it is rendered at the zoom.
+     */
+    private float getDrawScale() {
+        return mZoom / mRenderedZoom;
+    }
+
+    /**
+     * Scales a rectangle in the coordinates of the laid out content into those
+     * of what is drawn.
+     */
+    private void toDisplayRect(Rect rect) {
+        final float scale = getDrawScale();
+        if (scale != 1f) {
+            final int l = getPaddingLeft();
+            final int t = getPaddingTop();
+            rect.set(l + (int) ((rect.left - l) * scale), t + (int) ((rect.top - t) * scale),
+                    l + (int) Math.ceil((rect.right - l) * scale),
+                    t + (int) Math.ceil((rect.bottom - t) * scale));
+        }
+    }
+
+    /**
+     * Scales a rectangle relative to the content origin from the drawn size
+     * back into the laid out size.
+     */
+    private void toContentRect(Rect rect) {
+        final float scale = getDrawScale();
+        if (scale != 1f) {
+            rect.set((int) (rect.left / scale), (int) (rect.top / scale),
+                    (int) Math.ceil(rect.right / scale), (int) Math.ceil(rect.bottom / scale));
+        }
+    }
+
+    /**
+     * Changes the zoom keeping the content under (focusX, focusY) in place.
+     */
+    private void zoomTo(float zoom, float focusX, float focusY) {
+        zoom = Math.max(mMinZoom, Math.min(zoom, mMaxZoom));
+        if (zoom == mZoom) {
+            return;
+        }
+        abortScroll();
+        final float ratio = zoom / mZoom;
+        final float x = focusX - getPaddingLeft() + getExactScrollX();
+        final float y = focusY - getPaddingTop() + getExactScrollY();
+        mZoom = zoom;
+        scrollToExactly(x * ratio - focusX + getPaddingLeft(),
+                y * ratio - focusY + getPaddingTop());
+        updateTiles(false);
+        requestViewportChange();
+        invalidate();
+    }
+
+    /**
+     * Scrolls to the nearest pixel and keeps the fraction, so that moves of
+     * less than half a pixel add up instead of being lost.
+     */
+    private void scrollToExactly(float x, float y) {
+        final int scrollX = Math.round(x);
+        final int scrollY = Math.round(y);
+        scrollTo(scrollX, scrollY);
+        mExactScrollX = getScrollX();
+        mExactScrollY = getScrollY();
+        // A position clamped to the content has no fraction left.
+        mScrollFractionX = (mExactScrollX == scrollX) ? x - scrollX : 0f;
+        mScrollFractionY = (mExactScrollY == scrollY) ? y - scrollY : 0f;
+    }
+
+    private float getExactScrollX() {
+        final int scrollX = getScrollX();
+        return (scrollX == mExactScrollX) ? scrollX + mScrollFractionX : scrollX;
+    }
+
+    private float getExactScrollY() {
+        final int scrollY = getScrollY();
+        return (scrollY == mExactScrollY) ? scrollY + mScrollFractionY : scrollY;
+    }
+
+    /**
+     * Lets the listener render the content at the zoom, after the last frame
+     * of the gesture is drawn.
+     */
+    private void settleZoom() {
+        removeCallbacks(mZoomSettleRunnable);
+        if (mZoomListener != null && mZoom != mRenderedZoom) {
+            post(mZoomSettleRunnable);
+        }
+    }
+
+    private final ScaleRotateGestureDetector.OnScaleRotateGestureListener mZoomGestureListener =
+            new ScaleRotateGestureDetector.SimpleOnScaleRotateGestureListener() {
+        @Override
+        public boolean onScaleRotateBegin(ScaleRotateGestureDetector detector) {
+            if (!hasContent()) {
+                return false;
+            }
+            // Cancel the drag and the touches given to the children so far.
+            MotionEvent cancel = MotionEvent.obtain(0, 0, MotionEvent.ACTION_CANCEL, 0f, 0f, 0);
+            FreeScrollView.super.dispatchTouchEvent(cancel);
+            cancel.recycle();
+            abortScroll();
+            mIsZooming = true;
+            mZoomFocusX = detector.getFocusX();
+            mZoomFocusY = detector.getFocusY();
+            setScrollState(SCROLL_STATE_DRAGGING);
+            return true;
+        }
+
+        @Override
+        public boolean onScaleRotate(ScaleRotateGestureDetector detector) {
+            final float focusX = detector.getFocusX();
+            final float focusY = detector.getFocusY();
+            // Two fingers moving together pan as well.
+            scrollToExactly(getExactScrollX() + mZoomFocusX - focusX,
+                    getExactScrollY() + mZoomFocusY - focusY);
+            mZoomFocusX = focusX;
+            mZoomFocusY = focusY;
+            zoomTo(mZoom * detector.getScaleFactor(), focusX, focusY);
+            return true;
+        }
+
+        @Override
+        public void onScaleRotateEnd(ScaleRotateGestureDetector detector) {
+            setScrollState(SCROLL_STATE_IDLE);
+        }
+    };
+
+    /**
+     * Binds views to the tiles which cross the viewport extended by the margin,
+     * and recycles the views of the tiles which went out of it.
+     *
+     * @param rebind True to bind all tiles again
+     */
+    private void updateTiles(boolean rebind) {
+        if (mAdapter == null) {
+            return;
+        }
+        final int tileWidth = mAdapter.getTileWidth();
+        final int tileHeight = mAdapter.getTileHeight();
+        final int contentWidth = mAdapter.getContentWidth();
+        final int contentHeight = mAdapter.getContentHeight();
+        final int cols = (contentWidth + tileWidth - 1) / tileWidth;
+        final int rows = (contentHeight + tileHeight - 1) / tileHeight;
+        final float scale = getDrawScale();
+        final int left = (int) ((getScrollX() - getPaddingLeft()) / scale) - mTileMargin * tileWidth;
+        final int top = (int) ((getScrollY() - getPaddingTop()) / scale) - mTileMargin * tileHeight;
+        final int right = left + (int) Math.ceil(getWidth() / scale) + mTileMargin * tileWidth * 2;
+        final int bottom = top + (int) Math.ceil(getHeight() / scale) + mTileMargin * tileHeight * 2;
+        mTileRect.set(Math.max(left / tileWidth, 0), Math.max(top / tileHeight, 0),
+                Math.min((right + tileWidth - 1) / tileWidth, cols),
+                Math.min((bottom + tileHeight - 1) / tileHeight, rows));
+        if (!rebind && mTileRect.equals(mBoundTiles)) {
+            return;
+        }
+
+        Iterator<Map.Entry<Long, View>> it = mTileViews.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, View> entry = it.next();
+            long key = entry.getKey();
+            int col = (int) key;
+            int row = (int) (key >> 32);
+            if (rebind || !mTileRect.contains(col, row)) {
+                View view = entry.getValue();
+                removeViewInLayout(view);
+                mRecycledTiles.add(view);
+                it.remove();
+            }
+        }
+
+        for (int row = mTileRect.top; row < mTileRect.bottom; row++) {
+            for (int col = mTileRect.left; col < mTileRect.right; col++) {
+                Long key = Long.valueOf((long) row << 32 | col);
+                if (mTileViews.containsKey(key)) {
+                    continue;
+                }
+                int n = mRecycledTiles.size();
+                View convertView = (n > 0) ? mRecycledTiles.remove(n - 1) : null;
+                View view = mAdapter.getTileView(col, row, convertView, this);
+                if (view != convertView && convertView != null) {
+                    mRecycledTiles.add(convertView);
+                }
+                int x = getPaddingLeft() + col * tileWidth;
+                int y = getPaddingTop() + row * tileHeight;
+                int w = Math.min(tileWidth, contentWidth - col * tileWidth);
+                int h = Math.min(tileHeight, contentHeight - row * tileHeight);
+                ViewGroup.LayoutParams params = view.getLayoutParams();
+                if (params == null) {
+                    params = new LayoutParams(w, h);
+                }
+                addViewInLayout(view, -1, params, true);
+                view.measure(MeasureSpec.makeMeasureSpec(w, MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec(h, MeasureSpec.EXACTLY));
+                view.layout(x, y, x + w, y + h);
+                mTileViews.put(key, view);
+            }
+        }
+        mBoundTiles.set(mTileRect);
+        invalidate();
+    }
+
     private int clamp(int n, int my, int child) {
         if (my >= child || n < 0) {
             /* my >= child is this case:
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Layers of the same size flattened into one bitmap for {@link MagnifyView}.
+ * The layers below and above the active layer are kept merged into two
+ * caches, so an edit of the active layer blends only three pixels for each
+ * dirty pixel whatever the number of layers. Other changes rebuild the
+ * caches in the changed area only.
+ */
+public class LayerStack implements PixelBuffer.Callback {
+
+    private int     mWidth;
+    private int     mHeight;
+    private ArrayList<Layer> mLayers = new ArrayList<Layer>();
+    private int     mActive = -1;
+
+    private Bitmap  mBitmap;
+    /* Premultiplied merges of the layers below and above the active layer. */
+    private int[]   mBelow;
+    private int[]   mAbove;
+    private int[]   mRow;
+    private Rect    mWorkRect = new Rect();
+    private DirtyRegion mCacheRegion = new DirtyRegion(8);
+    private DirtyRegion mDirtyRegion = new DirtyRegion(8);
+
+    private Callback mCallback;
+
+    /*-----------------------------------------------------------------------*/
+
+    public interface Callback {
+        public void onLayerStackDirty(LayerStack stack);
+    }
+
+    public static class Layer {
+
+        private PixelBuffer mBuffer;
+        private int     mOpacity = 255;
+        private boolean mIsVisible = true;
+
+        Layer(PixelBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        public PixelBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getOpacity() {
+            return mOpacity;
+        }
+
+        public boolean isVisible() {
+            return mIsVisible;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public LayerStack(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mBelow = new int[width * height];
+        mAbove = new int[width * height];
+        mRow = new int[width];
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the flattened image, which is brought up to date by {@link #flush(DirtyRegion)}.
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getLayerCount() {
+        return mLayers.size();
+    }
+
+    public Layer getLayer(int index) {
+        return mLayers.get(index);
+    }
+
+    /**
+     * Adds a transparent layer on the top and makes it active.
+     */
+    public Layer addLayer() {
+        Layer layer = new Layer(new PixelBuffer(mWidth, mHeight));
+        layer.mBuffer.setCallback(this);
+        mLayers.add(layer);
+        setActiveLayer(mLayers.size() - 1);
+        return layer;
+    }
+
+    /**
+     * Adds a layer with the pixels of the bitmap on the top and makes it active.
+     */
+    public Layer addLayer(Bitmap bmp) {
+        Layer layer = addLayer();
+        int w = Math.min(bmp.getWidth(), mWidth);
+        int h = Math.min(bmp.getHeight(), mHeight);
+        bmp.getPixels(layer.mBuffer.getPixels(), 0, mWidth, 0, 0, w, h);
+        invalidateAll();
+        return layer;
+    }
+
+    public void removeLayer(int index) {
+        Layer layer = mLayers.remove(index);
+        layer.mBuffer.setCallback(null);
+        if (mActive > index || mActive == mLayers.size()) {
+            mActive--;
+        }
+        invalidateAll();
+    }
+
+    public int getActiveIndex() {
+        return mActive;
+    }
+
+    public Layer getActiveLayer() {
+        return (mActive >= 0) ? mLayers.get(mActive) : null;
+    }
+
+    /**
+     * Chooses the layer to be edited. The caches are rebuilt, so this costs as
+     * much as flattening all layers once.
+     */
+    public void setActiveLayer(int index) {
+        if (index < 0 || index >= mLayers.size()) {
+            throw new IndexOutOfBoundsException("No layer " + index);
+        }
+        if (index != mActive) {
+            mActive = index;
+            invalidateAll();
+        }
+    }
+
+    public void setOpacity(int index, int opacity) {
+        Layer layer = mLayers.get(index);
+        opacity = Math.max(0, Math.min(opacity, 255));
+        if (layer.mOpacity != opacity) {
+            layer.mOpacity = opacity;
+            invalidateLayer(index);
+        }
+    }
+
+    public void setVisible(int index, boolean visible) {
+        Layer layer = mLayers.get(index);
+        if (layer.mIsVisible != visible) {
+            layer.mIsVisible = visible;
+            invalidateLayer(index);
+        }
+    }
+
+    /**
+     * Pushes the edits of the layers into the flattened image. The changed
+     * rectangles are handed to outRegion, which may be null.
+     */
+    public void flush(DirtyRegion outRegion) {
+        for (int i = 0; i < mLayers.size(); i++) {
+            PixelBuffer buffer = mLayers.get(i).mBuffer;
+            if (buffer.isDirty()) {
+                buffer.flush((i == mActive) ? mDirtyRegion : mCacheRegion);
+            }
+        }
+        Rect rect = mWorkRect;
+        for (int i = 0; i < mCacheRegion.getCount(); i++) {
+            mCacheRegion.getRect(i, rect);
+            updateCaches(rect);
+            mDirtyRegion.add(rect);
+        }
+        mCacheRegion.clear();
+        for (int i = 0; i < mDirtyRegion.getCount(); i++) {
+            mDirtyRegion.getRect(i, rect);
+            compose(rect);
+            if (outRegion != null) {
+                outRegion.add(rect);
+            }
+        }
+        mDirtyRegion.clear();
+    }
+
+    public void recycle() {
+        mBitmap.recycle();
+    }
+
+    @Override
+    public void onPixelBufferDirty(PixelBuffer buffer) {
+        if (mCallback != null) {
+            mCallback.onLayerStackDirty(this);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void invalidateLayer(int index) {
+        if (index == mActive) {
+            boolean wasClean = mDirtyRegion.isEmpty() && mCacheRegion.isEmpty();
+            mDirtyRegion.add(0, 0, mWidth, mHeight);
+            if (wasClean && mCallback != null) {
+                mCallback.onLayerStackDirty(this);
+            }
+        } else {
+            invalidateAll();
+        }
+    }
+
+    private void invalidateAll() {
+        boolean wasClean = mDirtyRegion.isEmpty() && mCacheRegion.isEmpty();
+        mCacheRegion.add(0, 0, mWidth, mHeight);
+        if (wasClean && mCallback != null) {
+            mCallback.onLayerStackDirty(this);
+        }
+    }
+
+    private void updateCaches(Rect rect) {
+        int w = mWidth;
+        int[] below = mBelow;
+        int[] above = mAbove;
+        for (int y = rect.top; y < rect.bottom; y++) {
+            for (int i = y * w + rect.left, end = y * w + rect.right; i < end; i++) {
+                below[i] = 0;
+                above[i] = 0;
+            }
+        }
+        for (int n = 0; n < mLayers.size(); n++) {
+            Layer layer = mLayers.get(n);
+            if (n == mActive || !layer.mIsVisible || layer.mOpacity == 0) {
+                continue;
+            }
+            int[] dst = (n < mActive) ? below : above;
+            int[] src = layer.mBuffer.getPixels();
+            int opacity = layer.mOpacity;
+            for (int y = rect.top; y < rect.bottom; y++) {
+                for (int i = y * w + rect.left, end = y * w + rect.right; i < end; i++) {
+                    dst[i] = over(premultiply(src[i], opacity), dst[i]);
+                }
+            }
+        }
+    }
+
+    private void compose(Rect rect) {
+        Layer layer = getActiveLayer();
+        boolean isVisible = (layer != null && layer.mIsVisible && layer.mOpacity > 0);
+        int[] src = isVisible ? layer.mBuffer.getPixels() : null;
+        int opacity = isVisible ? layer.mOpacity : 0;
+        int w = mWidth;
+        int rw = rect.width();
+        int[] row = mRow;
+        for (int y = rect.top; y < rect.bottom; y++) {
+            int offset = y * w + rect.left;
+            for (int x = 0; x < rw; x++) {
+                int i = offset + x;
+                int c = mBelow[i];
+                if (src != null) {
+                    c = over(premultiply(src[i], opacity), c);
+                }
+                row[x] = unpremultiply(over(mAbove[i], c));
+            }
+            mBitmap.setPixels(row, 0, rw, rect.left, y, rw, 1);
+        }
+    }
+
+    /**
+     * Blends unpremultiplied colors the way Canvas draws a bitmap over another.
+     */
+    static int blend(int top, int bottom) {
+        int ta = top >>> 24;
+        if (ta == 255 || bottom == 0) {
+            return top;
+        }
+        if (ta == 0) {
+            return bottom;
+        }
+        return unpremultiply(over(premultiply(top, 255), premultiply(bottom, 255)));
+    }
+
+    private static int mul(int c, int a) {
+        int t = c * a + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    private static int premultiply(int color, int opacity) {
+        int a = mul(color >>> 24, opacity);
+        if (a == 0) {
+            return 0;
+        }
+        return a << 24 | mul((color >> 16) & 0xFF, a) << 16
+                | mul((color >> 8) & 0xFF, a) << 8 | mul(color & 0xFF, a);
+    }
+
+    private static int unpremultiply(int color) {
+        int a = color >>> 24;
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 255) {
+            return color;
+        }
+        int r = Math.min((((color >> 16) & 0xFF) * 255 + a / 2) / a, 255);
+        int g = Math.min((((color >> 8) & 0xFF) * 255 + a / 2) / a, 255);
+        int b = Math.min(((color & 0xFF) * 255 + a / 2) / a, 255);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Blends premultiplied colors.
+     */
+    private static int over(int top, int bottom) {
+        int ta = top >>> 24;
+        if (ta == 255 || bottom == 0) {
+            return top;
+        }
+        if (ta == 0) {
+            return bottom;
+        }
+        int inv = 255 - ta;
+        return (ta + mul(bottom >>> 24, inv)) << 24
+                | (((top >> 16) & 0xFF) + mul((bottom >> 16) & 0xFF, inv)) << 16
+                | (((top >> 8) & 0xFF) + mul((bottom >> 8) & 0xFF, inv)) << 8
+                | ((top & 0xFF) + mul(bottom & 0xFF, inv));
+    }
+
+}
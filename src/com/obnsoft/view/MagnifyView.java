@@ -16,20 +16,34 @@
 
 package com.obnsoft.view;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.ScaleGestureDetector.OnScaleGestureListener;
 import android.view.View;
 
-public class MagnifyView extends View implements OnScaleGestureListener {
+public class MagnifyView extends View
+        implements OnScaleGestureListener, PixelBuffer.Callback, LayerStack.Callback {
+
+    private static final int MIPMAP_WORK_SIZE = 64 * 1024;
+
+    /* Builds the mipmaps of all views, so none has a thread to shut down. */
+    private static final ExecutorService sMipmapExecutor = Executors.newSingleThreadExecutor();
 
     private float   mUnit = 1f;
     private float   mMinUnit = 1f;
@@ -50,19 +64,159 @@ public class MagnifyView extends View implements OnScaleGestureListener {
     private float   mFocusUnitY;
 
     private Bitmap  mBitmap;
+    private TileSource mTileSource;
+    private Paint   mPlaceholderPaint = new Paint();
+    private Rect    mLoadedRect = new Rect();
+    private OnTileLoadedListener mTileLoadedListener = new OnTileLoadedListener() {
+        @Override
+        public void onTileLoaded(TileSource source, int col, int row) {
+            if (source == mTileSource) {
+                int size = source.getTileSize();
+                mLoadedRect.set(col * size, row * size, (col + 1) * size, (row + 1) * size);
+                invalidateArea(mLoadedRect);
+            }
+        }
+    };
     private Rect    mWorkRect = new Rect();
+    private Rect    mTileRect = new Rect();
+    private RectF   mTileDrawRect = new RectF();
+    private Rect    mVisibleRect = new Rect();
+    private RectF   mVisibleDrawRect = new RectF();
     private Rect    mSrcRect = new Rect();
     private RectF   mDrawRect = new RectF();
     private Paint   mPaint = new Paint();
 
+    private int     mGridTileSize;
+    private Bitmap  mGridTile;
+    private Bitmap  mHatchTile;
+    private Paint   mGridPaint = new Paint();
+    private Paint   mHatchPaint = new Paint();
+    private Matrix  mGridMatrix = new Matrix();
+
+    private MipmapPyramid mMipmap;
+    private Rect    mMipRect = new Rect();
+    private int[]   mMipWork;
+    private volatile int mMipmapGeneration;
+    private boolean mIsMipmapPending;
+    private DirtyRegion mMipmapPending = new DirtyRegion(8);
+    private Paint   mSmoothPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private Bitmap  mOnionPrev;
+    private Bitmap  mOnionNext;
+    private Paint   mOnionPaint = new Paint();
+
+    private Bitmap  mOverlay;
+    private Rect    mOverlayRect = new Rect();
+    private Rect    mSelectionRect = new Rect();
+    private int     mSelectionColor = Color.CYAN;
+    private RectF   mOverlayDrawRect = new RectF();
+
+    private PixelBuffer mPixelBuffer;
+    private LayerStack mLayerStack;
+    private DirtyRegion mFlushRegion = new DirtyRegion(8);
+    private boolean mIsFlushPending;
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPixels();
+        }
+    };
+
+    private RenderMetrics mMetrics;
+    private int     mInvalidateCount;
+    private int     mGridPrimitives;
+    private long    mTouchTime = -1;
+    private long    mTouchLatency = -1;
+
+    private boolean mIsFrameCached;
+    private boolean mIsCacheValid;
+    private Bitmap  mFrameCache;
+    private Bitmap  mFrameBack;
+    private Canvas  mFrameCanvas = new Canvas();
+    private Canvas  mBackCanvas = new Canvas();
+    private float   mCachedLeft;
+    private float   mCachedTop;
+    private float   mCachedUnit;
+    private DirtyRegion mCacheDirty = new DirtyRegion(8);
+    private Rect    mCacheRect = new Rect();
+
     private EventHandler mHandler;
+    private OnChangeListener mChangeListener;
+    private UnitHistory mHistory = new UnitHistory();
+    private int[]   mStrokeCells = new int[64];
+    private int     mStrokeX;
+    private int     mStrokeY;
+    private boolean mIsStroking;
+    private TouchPredictor mPredictor;
+    private float[] mPredCoords = new float[TouchPredictor.MAX_PREDICTIONS * 2];
+    private float[] mProvisional = new float[TouchPredictor.MAX_PREDICTIONS * 2];
+    private int     mProvisionalCount;
+    private Rect    mProvisionalRect = new Rect();
+    private Paint   mProvisionalPaint = new Paint();
     private ScaleGestureDetector mGestureDetector;
 
     /*-----------------------------------------------------------------------*/
 
     public interface EventHandler {
-        public boolean onTouchEventUnit(
-                int action, float unitX, float unitY, float[] historicalCoords);
+        /**
+         * historicalCoords holds historySize pairs of unit coordinates. The array is reused
+         * for every event and may be longer than needed, so don't keep a reference to it.
+         */
+        public boolean onTouchEventUnit(int action, float unitX, float unitY,
+                float[] historicalCoords, int historySize);
+    }
+
+    /**
+     * An EventHandler which is also given where the stroke is likely to go next.
+     */
+    public interface PredictiveEventHandler extends EventHandler {
+        /**
+         * Called after onTouchEventUnit() with up to two pairs of unit coordinates
+         * extrapolated ahead of the last sample. They are provisional and replaced
+         * by the next call, which has predictedSize 0 when the stroke ends or
+         * nothing can be predicted. The array is reused like historicalCoords.
+         */
+        public void onPredictedUnits(float[] predictedCoords, int predictedSize);
+    }
+
+    public interface OnChangeListener {
+        /**
+         * Called when the source is replaced, even by one of the same size.
+         * onViewportChanged() follows.
+         */
+        public void onSourceChanged(MagnifyView view);
+        /**
+         * Called when the source is replaced or the view is panned or zoomed.
+         */
+        public void onViewportChanged(MagnifyView view);
+        /**
+         * Called through invalidateUnit() with an exclusive rectangle of units.
+         */
+        public void onUnitsChanged(MagnifyView view, int l, int t, int r, int b);
+    }
+
+    public interface TileSource {
+        public int getWidth();
+        public int getHeight();
+        public int getTileSize();
+        public Bitmap getTile(int col, int row);
+    }
+
+    /**
+     * A TileSource whose getTile() may return null until the tile has been
+     * loaded in the background. A placeholder is drawn in the meantime.
+     */
+    public interface AsyncTileSource extends TileSource {
+        /**
+         * Tells the inclusive range of tiles about to be drawn, so that the
+         * loading of other tiles may be dropped.
+         */
+        public void setVisibleTiles(int colStart, int rowStart, int colEnd, int rowEnd);
+        public void setOnTileLoadedListener(OnTileLoadedListener listener);
+    }
+
+    public interface OnTileLoadedListener {
+        public void onTileLoaded(TileSource source, int col, int row);
     }
 
     /*-----------------------------------------------------------------------*/
@@ -80,16 +234,39 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         mPaint.setAntiAlias(false);
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setStrokeWidth(1);
+        mPlaceholderPaint.setColor(Color.GRAY);
         mGestureDetector = new ScaleGestureDetector(context, this);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mBitmap == null) {
+        if (!hasSource()) {
             return;
         }
+        long startTime = (mMetrics != null) ? System.nanoTime() : 0;
+
+        canvas.getClipBounds(mWorkRect);
+        if (mWorkRect.isEmpty()) {
+            mWorkRect.set(0, 0, getWidth(), getHeight());
+        }
+        int clipArea = mWorkRect.width() * mWorkRect.height();
+        mGridPrimitives = 0;
+        if (mIsFrameCached) {
+            updateFrameCache();
+            canvas.drawBitmap(mFrameCache, 0, 0, null);
+        } else {
+            drawFrame(canvas);
+        }
+        if (mMetrics != null) {
+            mMetrics.recordFrame(System.nanoTime() - startTime,
+                    mGridPrimitives, clipArea, mInvalidateCount, mTouchLatency);
+            mInvalidateCount = 0;
+            mTouchLatency = -1;
+        }
+    }
 
+    private void drawFrame(Canvas canvas) {
         canvas.getClipBounds(mWorkRect);
         if (mWorkRect.isEmpty()) {
             mWorkRect.set(0, 0, getWidth(), getHeight());
@@ -98,35 +275,34 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         float cr = Math.min(mWorkRect.right, mDrawRect.right);
         float ct = Math.max(mWorkRect.top, mDrawRect.top);
         float cb = Math.min(mWorkRect.bottom, mDrawRect.bottom);
-        cl -= (cl - mDrawRect.left) % mUnit;
-        ct -= (ct - mDrawRect.top) % mUnit;
-
-        mPaint.setColor(mGridColor);
-        if (mGridColor != Color.TRANSPARENT) {
-            float x1 = cl, x2 = cl;
-            float y1 = ct, y2 = ct;
-            while (x1 < cr || y1 < cb) {
-                if (x1 < cr) x1 += mUnit; else y1 += mUnit;
-                if (y2 < cb) y2 += mUnit; else x2 += mUnit;
-                canvas.drawLine(x1 + 1, y1, x2, y2 + 1, mPaint);
-            }
+
+        boolean isGridVisible = (mGridColor != Color.TRANSPARENT && cl < cr && ct < cb);
+        if (isGridVisible) {
+            prepareGridTiles();
+            canvas.drawRect(cl, ct, cr, cb, mHatchPaint);
+            mGridPrimitives++;
         }
-        canvas.drawBitmap(mBitmap, mSrcRect, mDrawRect, null);
-        if (mPaint.getColor() != Color.TRANSPARENT) {
-            if (mDotted) {
-                for (float x = cl; x <= cr; x += mUnit) {
-                    for (float y = ct; y <= cb; y += mUnit) {
-                        canvas.drawPoint(x, y, mPaint);
-                    }
-                }
+        if (calcVisibleRect()) {
+            if (mOnionPaint.getAlpha() > 0) {
+                drawOnionSkin(canvas);
+            }
+            if (mTileSource != null) {
+                drawTiles(canvas);
+            } else if (mIsSmooth && mUnit <= 0.5f) {
+                drawMipmap(canvas);
             } else {
-                for (float x = cl; x <= cr; x += mUnit) {
-                    canvas.drawLine(x, ct, x, cb, mPaint);
-                }
-                for (float y = ct; y <= cb; y += mUnit) {
-                    canvas.drawLine(cl, y, cr, y, mPaint);
-                }
+                canvas.drawBitmap(mBitmap, mVisibleRect, mVisibleDrawRect, null);
+            }
+            if (mOverlay != null) {
+                drawOverlay(canvas);
             }
+            if (mProvisionalCount > 0) {
+                drawProvisionalUnits(canvas);
+            }
+        }
+        if (isGridVisible) {
+            canvas.drawRect(cl, ct, cr + 1, cb + 1, mGridPaint);
+            mGridPrimitives++;
         }
         if (mFrameColor != Color.TRANSPARENT) {
             mPaint.setColor(mFrameColor);
@@ -134,6 +310,13 @@ public class MagnifyView extends View implements OnScaleGestureListener {
             canvas.drawRect(mDrawRect.left - gap, mDrawRect.top - gap,
                     mDrawRect.right, mDrawRect.bottom, mPaint);
         }
+        if (!mSelectionRect.isEmpty()) {
+            mPaint.setColor(mSelectionColor);
+            canvas.drawRect(mDrawRect.left + mSelectionRect.left * mUnit,
+                    mDrawRect.top + mSelectionRect.top * mUnit,
+                    mDrawRect.left + mSelectionRect.right * mUnit,
+                    mDrawRect.top + mSelectionRect.bottom * mUnit, mPaint);
+        }
     }
 
     @Override
@@ -146,20 +329,24 @@ public class MagnifyView extends View implements OnScaleGestureListener {
     public boolean onTouchEvent(MotionEvent event) {
         float x = event.getX();
         float y = event.getY();
+        if (mMetrics != null) {
+            mTouchTime = event.getEventTime();
+        }
         if (mHandler != null) {
             int action = event.getActionMasked();
             float unitX = (x - mDrawRect.left) / mUnit;
             float unitY = (y - mDrawRect.top) / mUnit;
             int histCount = event.getHistorySize();
-            float[] histCoords = null;
-            if (histCount > 0) {
-                histCoords = new float[histCount * 2];
-                for (int i = 0; i < histCount; i++) {
-                    histCoords[i * 2]     = (event.getHistoricalX(i) - mDrawRect.left) / mUnit;
-                    histCoords[i * 2 + 1] = (event.getHistoricalY(i) - mDrawRect.top) / mUnit;
-                }
+            mHistory.begin(histCount, mDrawRect.left, mDrawRect.top, mUnit);
+            for (int i = 0; i < histCount; i++) {
+                mHistory.set(i, event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+            boolean ret = mHandler.onTouchEventUnit(action, unitX, unitY,
+                    mHistory.getCoords(), histCount);
+            if (mPredictor != null) {
+                predictUnits(event);
             }
-            return mHandler.onTouchEventUnit(action, unitX, unitY, histCoords);
+            return ret;
         }
 
         if (!mScrollable) return false;
@@ -175,11 +362,20 @@ public class MagnifyView extends View implements OnScaleGestureListener {
                 break;
             case MotionEvent.ACTION_MOVE:
                 if (mIsMoving) {
-                    mDrawRect.offset(x - mFocusX, y - mFocusY);
-                    mFocusX = x;
-                    mFocusY = y;
+                    float dx = x - mFocusX;
+                    float dy = y - mFocusY;
+                    if (mIsFrameCached) {
+                        // Whole pixel moves let the cached frame be shifted as it is.
+                        dx = (int) dx;
+                        dy = (int) dy;
+                    }
+                    mDrawRect.offset(dx, dy);
+                    mFocusX += dx;
+                    mFocusY += dy;
                     adjustDrawRect();
                     invalidate();
+                    notifyViewportChanged();
+                    measureTouchLatency();
                     ret = true;
                 }
                 break;
@@ -219,6 +415,7 @@ public class MagnifyView extends View implements OnScaleGestureListener {
                         dx + mSrcRect.width() * mUnit, dy + mSrcRect.height() * mUnit);
                 adjustDrawRect();
                 invalidate();
+                notifyViewportChanged();
             }
         }
         return true;
@@ -227,7 +424,7 @@ public class MagnifyView extends View implements OnScaleGestureListener {
     @Override
     public boolean onScaleBegin(ScaleGestureDetector detector) {
         mIsMoving = false;
-        if (mBitmap != null) {
+        if (hasSource()) {
             mFocusX = detector.getFocusX();
             mFocusY = detector.getFocusY();
             mFocusUnitX = (mFocusX - mDrawRect.left) / mUnit;
@@ -245,6 +442,23 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         mIsScaling = false;
     }
 
+    @Override
+    public void onPixelBufferDirty(PixelBuffer buffer) {
+        postFlush();
+    }
+
+    @Override
+    public void onLayerStackDirty(LayerStack stack) {
+        postFlush();
+    }
+
+    private void postFlush() {
+        if (!mIsFlushPending) {
+            mIsFlushPending = true;
+            post(mFlushRunnable);
+        }
+    }
+
     /*-----------------------------------------------------------------------*/
 
     public void setBitmap(Bitmap bmp) {
@@ -254,9 +468,18 @@ public class MagnifyView extends View implements OnScaleGestureListener {
 
     public void setBitmap(Bitmap bmp, int l, int t, int r, int b) {
         mBitmap = bmp;
+        detachTileSource();
+        mPixelBuffer = null;
+        detachLayerStack();
+        recycleMipmap();
+        if (bmp != null && mIsSmooth) {
+            buildMipmap();
+        }
         mSrcRect.set(l, t, r, b);
         calcCoords();
-        invalidate();
+        invalidateFrame();
+        notifySourceChanged();
+        notifyViewportChanged();
     }
 
     public void setBitmap(Bitmap bmp, boolean smooth) {
@@ -264,25 +487,145 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         setBitmap(bmp);
     }
 
+    public void setTileSource(TileSource source) {
+        mBitmap = null;
+        detachTileSource();
+        mTileSource = source;
+        if (source instanceof AsyncTileSource) {
+            ((AsyncTileSource) source).setOnTileLoadedListener(mTileLoadedListener);
+        }
+        mPixelBuffer = null;
+        detachLayerStack();
+        recycleMipmap();
+        mSrcRect.set(0, 0, (source == null) ? 0 : source.getWidth(),
+                (source == null) ? 0 : source.getHeight());
+        calcCoords();
+        invalidateFrame();
+        notifySourceChanged();
+        notifyViewportChanged();
+    }
+
+    /**
+     * Shows the bitmap of the buffer, which is then returned by getPixelBuffer().
+     */
+    public void setPixelBuffer(PixelBuffer buffer) {
+        setBitmap((buffer == null) ? null : buffer.getBitmap());
+        mPixelBuffer = buffer;
+        if (buffer != null) {
+            buffer.setCallback(this);
+        }
+    }
+
+    /**
+     * Draws the bitmaps at the alpha under the bitmap, such as the previous and
+     * next frames of an animation. They must have the same size as the bitmap,
+     * and either may be null.
+     */
+    public void setOnionSkin(Bitmap prev, Bitmap next, int alpha) {
+        mOnionPrev = prev;
+        mOnionNext = next;
+        mOnionPaint.setAlpha((prev == null && next == null) ? 0 : alpha);
+        invalidateFrame();
+    }
+
+    /**
+     * Draws a bitmap over the units from (unitX, unitY) without changing the
+     * bitmap, such as pixels being moved. Null removes it.
+     */
+    public void setOverlay(Bitmap overlay, int unitX, int unitY) {
+        if (mOverlay != null) {
+            invalidateArea(mOverlayRect);
+        }
+        mOverlay = overlay;
+        if (overlay != null) {
+            mOverlayRect.set(unitX, unitY,
+                    unitX + overlay.getWidth(), unitY + overlay.getHeight());
+            invalidateArea(mOverlayRect);
+        }
+    }
+
+    /**
+     * Outlines an area of units, given as an exclusive rectangle. Null or an
+     * empty rectangle removes the outline.
+     */
+    public void setSelectionRect(Rect unitRect) {
+        if (!mSelectionRect.isEmpty()) {
+            invalidateArea(mSelectionRect);
+        }
+        if (unitRect == null) {
+            mSelectionRect.setEmpty();
+        } else {
+            mSelectionRect.set(unitRect);
+            invalidateArea(mSelectionRect);
+        }
+    }
+
+    /**
+     * Fills cells at count pairs of unit coordinates with the color without
+     * changing the bitmap, such as predicted points of a stroke. Each call
+     * replaces the cells of the previous one, and a count of 0 removes them.
+     */
+    public void setProvisionalUnits(float[] unitCoords, int count, int color) {
+        if (mProvisionalCount > 0) {
+            invalidateArea(mProvisionalRect);
+        }
+        count = Math.min(count, mProvisional.length / 2);
+        mProvisionalCount = count;
+        if (count == 0) {
+            return;
+        }
+        mProvisionalPaint.setColor(color);
+        mProvisionalRect.setEmpty();
+        for (int i = 0; i < count; i++) {
+            int x = (int) Math.floor(unitCoords[i * 2]);
+            int y = (int) Math.floor(unitCoords[i * 2 + 1]);
+            mProvisional[i * 2] = x;
+            mProvisional[i * 2 + 1] = y;
+            mProvisionalRect.union(x, y, x + 1, y + 1);
+        }
+        invalidateArea(mProvisionalRect);
+    }
+
+    public void setSelectionColor(int color) {
+        mSelectionColor = color;
+        invalidateFrame();
+    }
+
+    /**
+     * Shows the flattened image of the layers. getPixelBuffer() then returns
+     * the buffer of the active layer, and flushPixels() flattens the edits.
+     */
+    public void setLayerStack(LayerStack stack) {
+        setBitmap((stack == null) ? null : stack.getBitmap());
+        mLayerStack = stack;
+        if (stack != null) {
+            stack.setCallback(this);
+            flushPixels();
+        }
+    }
+
     public void setScaleRange(float min, float max) {
         if (min <= max) {
             mMinUnit = min;
             mMaxUnit = max;
             if (mUnit < min || mUnit > max) {
-                invalidate();
+                invalidateFrame();
             }
         }
     }
 
     public void setGridColor(int color, boolean dotted) {
+        if (color != mGridColor || dotted != mDotted) {
+            recycleGridTiles();
+        }
         mGridColor = color;
         mDotted = dotted;
-        invalidate();
+        invalidateFrame();
     }
 
     public void setFrameColor(int color) {
         mFrameColor = color;
-        invalidate();
+        invalidateFrame();
     }
 
     public void setScrollable(boolean enabled) {
@@ -291,9 +634,152 @@ public class MagnifyView extends View implements OnScaleGestureListener {
 
     public void setEventHandler(EventHandler handler) {
         mHandler = handler;
+        if (handler instanceof PredictiveEventHandler) {
+            if (mPredictor == null) {
+                mPredictor = new TouchPredictor();
+            }
+            mPredictor.reset();
+        } else {
+            mPredictor = null;
+        }
+        setProvisionalUnits(null, 0, 0);
+    }
+
+    public void setOnChangeListener(OnChangeListener listener) {
+        mChangeListener = listener;
+    }
+
+    /**
+     * Keeps the last frame in an offscreen buffer. Panning then shifts the buffer
+     * and draws only the newly exposed strips, at the cost of two bitmaps of the
+     * view size.
+     */
+    public void setFrameCacheEnabled(boolean enabled) {
+        mIsFrameCached = enabled;
+        if (!enabled) {
+            recycleFrameCache();
+        }
+        invalidateFrame();
+    }
+
+    /**
+     * Starts recording per-frame measurements into metrics, or stops it with null.
+     */
+    public void setRenderMetrics(RenderMetrics metrics) {
+        mMetrics = metrics;
+        mInvalidateCount = 0;
+        mTouchTime = -1;
+        mTouchLatency = -1;
+    }
+
+    /**
+     * Returns the batched write surface of the current bitmap, which must be mutable.
+     * Once it is used, the bitmap should be edited only through it.
+     */
+    public PixelBuffer getPixelBuffer() {
+        if (mLayerStack != null) {
+            LayerStack.Layer layer = mLayerStack.getActiveLayer();
+            return (layer == null) ? null : layer.getBuffer();
+        }
+        if (mPixelBuffer == null && mBitmap != null) {
+            mPixelBuffer = new PixelBuffer(mBitmap);
+            mPixelBuffer.setCallback(this);
+        }
+        return mPixelBuffer;
+    }
+
+    public int floodFillUnit(FloodFill fill, int unitX, int unitY, int color) {
+        PixelBuffer buffer = getPixelBuffer();
+        if (buffer == null) {
+            return 0;
+        }
+        return fill.fill(buffer, mSrcRect,
+                mSrcRect.left + unitX, mSrcRect.top + unitY, color, null);
+    }
+
+    /**
+     * Writes cells given in pairs of units together with their mirrored cells.
+     */
+    public int plotUnits(Symmetry symmetry, int[] coords, int count, int color) {
+        PixelBuffer buffer = getPixelBuffer();
+        if (buffer == null) {
+            return 0;
+        }
+        return symmetry.plot(buffer, mSrcRect, coords, count, color);
+    }
+
+    /**
+     * Draws a stroke through the samples of a touch event as given to
+     * onTouchEventUnit(), joined from the last sample of the previous event.
+     * The cells between samples are traced by Bresenham's algorithm, so fast
+     * strokes have no gaps, and the cells of the event are marked dirty as one
+     * rectangle, or one per mirror image when symmetry is given.
+     *
+     * @param symmetry may be null.
+     * @return the number of cells written.
+     */
+    public int drawStrokeUnits(int action, float unitX, float unitY,
+            float[] historicalCoords, int historySize, Symmetry symmetry, int color) {
+        PixelBuffer buffer = getPixelBuffer();
+        int count = 0;
+        if (buffer != null && (action == MotionEvent.ACTION_DOWN
+                || action == MotionEvent.ACTION_MOVE || action == MotionEvent.ACTION_UP)) {
+            if (action == MotionEvent.ACTION_DOWN) {
+                mIsStroking = false;
+            }
+            for (int i = 0; i < historySize; i++) {
+                count = traceStroke((int) Math.floor(historicalCoords[i * 2]),
+                        (int) Math.floor(historicalCoords[i * 2 + 1]), count);
+            }
+            count = traceStroke((int) Math.floor(unitX), (int) Math.floor(unitY), count);
+        }
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mIsStroking = false;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (symmetry != null) {
+            return symmetry.plot(buffer, mSrcRect, mStrokeCells, count, color);
+        }
+        int[] cells = mStrokeCells;
+        for (int i = 0; i < count; i++) {
+            cells[i * 2] += mSrcRect.left;
+            cells[i * 2 + 1] += mSrcRect.top;
+        }
+        buffer.plot(cells, count, color);
+        return count;
+    }
+
+    public void flushPixels() {
+        if (mIsFlushPending) {
+            mIsFlushPending = false;
+            removeCallbacks(mFlushRunnable);
+        }
+        if (mLayerStack != null) {
+            mLayerStack.flush(mFlushRegion);
+        } else if (mPixelBuffer != null && mPixelBuffer.isDirty()) {
+            mPixelBuffer.flush(mFlushRegion);
+        }
+        for (int i = 0; i < mFlushRegion.getCount(); i++) {
+            mFlushRegion.getRect(i, mWorkRect);
+            invalidateUnit(mWorkRect.left - mSrcRect.left, mWorkRect.top - mSrcRect.top,
+                    mWorkRect.right - 1 - mSrcRect.left, mWorkRect.bottom - 1 - mSrcRect.top);
+        }
+        mFlushRegion.clear();
     }
 
     public void invalidateUnit(int x, int y) {
+        countInvalidate();
+        if (mChangeListener != null) {
+            mChangeListener.onUnitsChanged(this, x, y, x + 1, y + 1);
+        }
+        if (mFrameCache != null) {
+            mCacheDirty.add(mSrcRect.left + x, mSrcRect.top + y,
+                    mSrcRect.left + x + 1, mSrcRect.top + y + 1);
+        }
+        invalidateMipmap(mSrcRect.left + x, mSrcRect.top + y,
+                mSrcRect.left + x + 1, mSrcRect.top + y + 1);
         float dx = mDrawRect.left;
         float dy = mDrawRect.top;
         invalidate((int) (dx + x * mUnit), (int) (dy + y * mUnit),
@@ -306,6 +792,16 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         } else if (t > b) {
             invalidateUnit(l, b, r, t);
         } else {
+            countInvalidate();
+            if (mChangeListener != null) {
+                mChangeListener.onUnitsChanged(this, l, t, r + 1, b + 1);
+            }
+            if (mFrameCache != null) {
+                mCacheDirty.add(mSrcRect.left + l, mSrcRect.top + t,
+                        mSrcRect.left + r + 1, mSrcRect.top + b + 1);
+            }
+            invalidateMipmap(mSrcRect.left + l, mSrcRect.top + t,
+                    mSrcRect.left + r + 1, mSrcRect.top + b + 1);
             float dx = mDrawRect.left;
             float dy = mDrawRect.top;
             invalidate((int) (dx + l * mUnit), (int) (dy + t * mUnit),
@@ -319,10 +815,526 @@ public class MagnifyView extends View implements OnScaleGestureListener {
         }
     }
 
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Returns the area of the bitmap or the tile source which is shown as units.
+     */
+    public void getSourceRect(Rect outRect) {
+        if (outRect != null) {
+            outRect.set(mSrcRect);
+        }
+    }
+
+    /**
+     * Pans the view so that the unit position comes to the center, as far as
+     * the panning range allows.
+     */
+    public void scrollToUnit(float unitX, float unitY) {
+        if (!hasSource()) {
+            return;
+        }
+        float dx = getWidth() / 2f - unitX * mUnit;
+        float dy = getHeight() / 2f - unitY * mUnit;
+        if (mIsFrameCached) {
+            dx = Math.round(dx - mDrawRect.left) + mDrawRect.left;
+            dy = Math.round(dy - mDrawRect.top) + mDrawRect.top;
+        }
+        mDrawRect.offsetTo(dx, dy);
+        adjustDrawRect();
+        invalidate();
+        notifyViewportChanged();
+    }
+
     /*-----------------------------------------------------------------------*/
 
+    private void detachTileSource() {
+        if (mTileSource instanceof AsyncTileSource) {
+            ((AsyncTileSource) mTileSource).setOnTileLoadedListener(null);
+        }
+        mTileSource = null;
+    }
+
+    private void detachLayerStack() {
+        if (mLayerStack != null) {
+            mLayerStack.setCallback(null);
+            mLayerStack = null;
+        }
+    }
+
+    /**
+     * Redraws an exclusive rectangle of units, with a margin for outlines,
+     * without treating the bitmap as changed.
+     */
+    private void invalidateArea(Rect unitRect) {
+        int l = (int) Math.floor(mDrawRect.left + unitRect.left * mUnit) - 2;
+        int t = (int) Math.floor(mDrawRect.top + unitRect.top * mUnit) - 2;
+        int r = (int) Math.ceil(mDrawRect.left + unitRect.right * mUnit) + 2;
+        int b = (int) Math.ceil(mDrawRect.top + unitRect.bottom * mUnit) + 2;
+        if (mFrameCache != null) {
+            mCacheDirty.add(mSrcRect.left + unitRect.left - 1, mSrcRect.top + unitRect.top - 1,
+                    mSrcRect.left + unitRect.right + 1, mSrcRect.top + unitRect.bottom + 1);
+        }
+        invalidate(l, t, r, b);
+    }
+
+    private void notifySourceChanged() {
+        if (mChangeListener != null) {
+            mChangeListener.onSourceChanged(this);
+        }
+    }
+
+    private void notifyViewportChanged() {
+        if (mChangeListener != null) {
+            mChangeListener.onViewportChanged(this);
+        }
+    }
+
+    private void invalidateFrame() {
+        mIsCacheValid = false;
+        invalidate();
+    }
+
+    private void updateFrameCache() {
+        int w = getWidth();
+        int h = getHeight();
+        if (mFrameCache == null || mFrameCache.getWidth() != w || mFrameCache.getHeight() != h) {
+            recycleFrameCache();
+            mFrameCache = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            mFrameBack = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            mFrameCanvas.setBitmap(mFrameCache);
+            mBackCanvas.setBitmap(mFrameBack);
+        }
+        float dx = mDrawRect.left - mCachedLeft;
+        float dy = mDrawRect.top - mCachedTop;
+        int sx = Math.round(dx);
+        int sy = Math.round(dy);
+        if (mUnit != mCachedUnit || Math.abs(dx - sx) > 0.001f || Math.abs(dy - sy) > 0.001f
+                || Math.abs(sx) >= w || Math.abs(sy) >= h) {
+            mIsCacheValid = false;
+        }
+        if (!mIsCacheValid) {
+            renderCacheRect(0, 0, w, h);
+        } else {
+            if (sx != 0 || sy != 0) {
+                mFrameBack.eraseColor(Color.TRANSPARENT);
+                mBackCanvas.drawBitmap(mFrameCache, sx, sy, null);
+                Bitmap bmp = mFrameCache;
+                mFrameCache = mFrameBack;
+                mFrameBack = bmp;
+                Canvas canvas = mFrameCanvas;
+                mFrameCanvas = mBackCanvas;
+                mBackCanvas = canvas;
+                if (sx > 0) {
+                    renderCacheRect(0, 0, sx, h);
+                } else if (sx < 0) {
+                    renderCacheRect(w + sx, 0, w, h);
+                }
+                if (sy > 0) {
+                    renderCacheRect(0, 0, w, sy);
+                } else if (sy < 0) {
+                    renderCacheRect(0, h + sy, w, h);
+                }
+            }
+            for (int i = 0; i < mCacheDirty.getCount(); i++) {
+                mCacheDirty.getRect(i, mCacheRect);
+                float l = mDrawRect.left + (mCacheRect.left - mSrcRect.left) * mUnit;
+                float t = mDrawRect.top + (mCacheRect.top - mSrcRect.top) * mUnit;
+                float r = mDrawRect.left + (mCacheRect.right - mSrcRect.left) * mUnit;
+                float b = mDrawRect.top + (mCacheRect.bottom - mSrcRect.top) * mUnit;
+                // One more pixel for the grid line on the right and bottom edges.
+                renderCacheRect((int) Math.floor(l), (int) Math.floor(t),
+                        (int) Math.ceil(r) + 1, (int) Math.ceil(b) + 1);
+            }
+        }
+        mCacheDirty.clear();
+        mCachedLeft = mDrawRect.left;
+        mCachedTop = mDrawRect.top;
+        mCachedUnit = mUnit;
+        mIsCacheValid = true;
+    }
+
+    private void renderCacheRect(int l, int t, int r, int b) {
+        Canvas canvas = mFrameCanvas;
+        canvas.save();
+        if (canvas.clipRect(l, t, r, b)) {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            drawFrame(canvas);
+        }
+        canvas.restore();
+    }
+
+    private void recycleFrameCache() {
+        if (mFrameCache != null) {
+            mFrameCache.recycle();
+            mFrameBack.recycle();
+            mFrameCache = null;
+            mFrameBack = null;
+        }
+        mCacheDirty.clear();
+        mIsCacheValid = false;
+    }
+
+    private void countInvalidate() {
+        if (mMetrics != null) {
+            mInvalidateCount++;
+            measureTouchLatency();
+        }
+    }
+
+    private void measureTouchLatency() {
+        if (mMetrics != null && mTouchTime >= 0) {
+            mTouchLatency = SystemClock.uptimeMillis() - mTouchTime;
+            mTouchTime = -1;
+        }
+    }
+
+    private boolean hasSource() {
+        return (mBitmap != null || mTileSource != null);
+    }
+
+    /**
+     * Calculates the part of mSrcRect which crosses the clip bounds in mWorkRect,
+     * and where it is drawn.
+     */
+    private boolean calcVisibleRect() {
+        float l = Math.max(mWorkRect.left, mDrawRect.left);
+        float t = Math.max(mWorkRect.top, mDrawRect.top);
+        float r = Math.min(mWorkRect.right, mDrawRect.right);
+        float b = Math.min(mWorkRect.bottom, mDrawRect.bottom);
+        if (l >= r || t >= b) {
+            return false;
+        }
+        int ul = (int) ((l - mDrawRect.left) / mUnit);
+        int ut = (int) ((t - mDrawRect.top) / mUnit);
+        int ur = Math.min((int) Math.ceil((r - mDrawRect.left) / mUnit), mSrcRect.width());
+        int ub = Math.min((int) Math.ceil((b - mDrawRect.top) / mUnit), mSrcRect.height());
+        mVisibleRect.set(mSrcRect.left + ul, mSrcRect.top + ut,
+                mSrcRect.left + ur, mSrcRect.top + ub);
+        mVisibleDrawRect.set(mDrawRect.left + ul * mUnit, mDrawRect.top + ut * mUnit,
+                mDrawRect.left + ur * mUnit, mDrawRect.top + ub * mUnit);
+        return !mVisibleRect.isEmpty();
+    }
+
+    private void drawOnionSkin(Canvas canvas) {
+        mOnionPaint.setFilterBitmap(mIsSmooth);
+        if (mOnionPrev != null) {
+            canvas.drawBitmap(mOnionPrev, mVisibleRect, mVisibleDrawRect, mOnionPaint);
+        }
+        if (mOnionNext != null) {
+            canvas.drawBitmap(mOnionNext, mVisibleRect, mVisibleDrawRect, mOnionPaint);
+        }
+    }
+
+    private void drawOverlay(Canvas canvas) {
+        float l = mDrawRect.left + mOverlayRect.left * mUnit;
+        float t = mDrawRect.top + mOverlayRect.top * mUnit;
+        mOverlayDrawRect.set(l, t, l + mOverlayRect.width() * mUnit,
+                t + mOverlayRect.height() * mUnit);
+        canvas.save();
+        canvas.clipRect(mDrawRect);
+        canvas.drawBitmap(mOverlay, null, mOverlayDrawRect, mIsSmooth ? mSmoothPaint : null);
+        canvas.restore();
+    }
+
+    private void drawProvisionalUnits(Canvas canvas) {
+        canvas.save();
+        canvas.clipRect(mDrawRect);
+        for (int i = 0; i < mProvisionalCount; i++) {
+            float l = mDrawRect.left + mProvisional[i * 2] * mUnit;
+            float t = mDrawRect.top + mProvisional[i * 2 + 1] * mUnit;
+            canvas.drawRect(l, t, l + mUnit, t + mUnit, mProvisionalPaint);
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Appends the cells from the last point of the stroke to (x, y) into
+     * mStrokeCells, leaving out the last point itself and cells off the units.
+     */
+    private int traceStroke(int x, int y, int count) {
+        if (!mIsStroking) {
+            mIsStroking = true;
+            mStrokeX = x;
+            mStrokeY = y;
+            return appendStrokeCell(x, y, count);
+        }
+        int x0 = mStrokeX;
+        int y0 = mStrokeY;
+        int dx = Math.abs(x - x0);
+        int dy = -Math.abs(y - y0);
+        int sx = (x0 < x) ? 1 : -1;
+        int sy = (y0 < y) ? 1 : -1;
+        int err = dx + dy;
+        while (x0 != x || y0 != y) {
+            int e2 = err * 2;
+            if (e2 >= dy) {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y0 += sy;
+            }
+            count = appendStrokeCell(x0, y0, count);
+        }
+        mStrokeX = x;
+        mStrokeY = y;
+        return count;
+    }
+
+    private int appendStrokeCell(int x, int y, int count) {
+        if (x < 0 || y < 0 || x >= mSrcRect.width() || y >= mSrcRect.height()) {
+            return count;
+        }
+        if (count * 2 + 2 > mStrokeCells.length) {
+            int[] cells = new int[mStrokeCells.length * 2];
+            System.arraycopy(mStrokeCells, 0, cells, 0, count * 2);
+            mStrokeCells = cells;
+        }
+        mStrokeCells[count * 2] = x;
+        mStrokeCells[count * 2 + 1] = y;
+        return count + 1;
+    }
+
+    private void predictUnits(MotionEvent event) {
+        int action = event.getActionMasked();
+        int count = 0;
+        if (action == MotionEvent.ACTION_DOWN) {
+            mPredictor.reset();
+        }
+        if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
+            for (int i = 0; i < event.getHistorySize(); i++) {
+                mPredictor.addSample(event.getHistoricalEventTime(i),
+                        event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+            mPredictor.addSample(event.getEventTime(), event.getX(), event.getY());
+            count = mPredictor.predict(mPredCoords, TouchPredictor.MAX_PREDICTIONS);
+            for (int i = 0; i < count; i++) {
+                mPredCoords[i * 2] = (mPredCoords[i * 2] - mDrawRect.left) / mUnit;
+                mPredCoords[i * 2 + 1] = (mPredCoords[i * 2 + 1] - mDrawRect.top) / mUnit;
+            }
+        } else {
+            mPredictor.reset();
+        }
+        // The handler may have been replaced by onTouchEventUnit().
+        if (mHandler instanceof PredictiveEventHandler) {
+            ((PredictiveEventHandler) mHandler).onPredictedUnits(mPredCoords, count);
+        }
+    }
+
+    private void drawTiles(Canvas canvas) {
+        int size = mTileSource.getTileSize();
+        int colStart = mVisibleRect.left / size;
+        int rowStart = mVisibleRect.top / size;
+        int colEnd = (mVisibleRect.right - 1) / size;
+        int rowEnd = (mVisibleRect.bottom - 1) / size;
+        if (mTileSource instanceof AsyncTileSource) {
+            ((AsyncTileSource) mTileSource).setVisibleTiles(colStart, rowStart, colEnd, rowEnd);
+        }
+        for (int row = rowStart; row <= rowEnd; row++) {
+            for (int col = colStart; col <= colEnd; col++) {
+                int x = col * size;
+                int y = row * size;
+                mTileRect.set(x, y, x + size, y + size);
+                if (!mTileRect.intersect(mVisibleRect)) {
+                    continue;
+                }
+                Bitmap tile = mTileSource.getTile(col, row);
+                mTileDrawRect.set(
+                        mDrawRect.left + (mTileRect.left - mSrcRect.left) * mUnit,
+                        mDrawRect.top + (mTileRect.top - mSrcRect.top) * mUnit,
+                        mDrawRect.left + (mTileRect.right - mSrcRect.left) * mUnit,
+                        mDrawRect.top + (mTileRect.bottom - mSrcRect.top) * mUnit);
+                if (tile == null) {
+                    // Not loaded yet.
+                    canvas.drawRect(mTileDrawRect, mPlaceholderPaint);
+                    continue;
+                }
+                mTileRect.offset(-x, -y);
+                canvas.drawBitmap(tile, mTileRect, mTileDrawRect, null);
+            }
+        }
+    }
+
+    private void drawMipmap(Canvas canvas) {
+        if (mMipmap == null) {
+            // Until the pyramid is built in the background, scale the image itself.
+            canvas.drawBitmap(mBitmap, mVisibleRect, mVisibleDrawRect, mSmoothPaint);
+            return;
+        }
+        if (mMipmap.isDirty()) {
+            mMipWork = updateMipmap(mMipmap, mBitmap,
+                    (mPixelBuffer != null) ? mPixelBuffer.getPixels() : null, mMipRect, mMipWork);
+        }
+        int level = mMipmap.getLevelForScale(mUnit);
+        mMipmap.mapRect(level, mVisibleRect, mMipRect);
+        float dx = mDrawRect.left - mSrcRect.left * mUnit;
+        float dy = mDrawRect.top - mSrcRect.top * mUnit;
+        // The last pixel of a level may go past the image, so clip it to the edge.
+        mVisibleDrawRect.set(dx + (mMipRect.left << level) * mUnit,
+                dy + (mMipRect.top << level) * mUnit,
+                dx + Math.min(mMipRect.right << level, mBitmap.getWidth()) * mUnit,
+                dy + Math.min(mMipRect.bottom << level, mBitmap.getHeight()) * mUnit);
+        canvas.drawBitmap((level == 0) ? mBitmap : mMipmap.getBitmap(level),
+                mMipRect, mVisibleDrawRect, mSmoothPaint);
+    }
+
+    /**
+     * Builds the pyramid of the bitmap on the worker. Areas changed meanwhile
+     * are kept and reduced again once it is in place.
+     */
+    private void buildMipmap() {
+        final Bitmap bmp = mBitmap;
+        final int generation = ++mMipmapGeneration;
+        mIsMipmapPending = true;
+        mMipmapPending.clear();
+        sMipmapExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mMipmapGeneration || bmp.isRecycled()) {
+                    return;
+                }
+                final MipmapPyramid mipmap = new MipmapPyramid(bmp.getWidth(), bmp.getHeight());
+                try {
+                    updateMipmap(mipmap, bmp, null, new Rect(), null);
+                } catch (IllegalStateException e) {
+                    // The bitmap was recycled while being read.
+                    mipmap.recycle();
+                    return;
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMipmapBuilt(mipmap, generation);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onMipmapBuilt(MipmapPyramid mipmap, int generation) {
+        if (generation != mMipmapGeneration) {
+            mipmap.recycle();
+            return;
+        }
+        mMipmap = mipmap;
+        mIsMipmapPending = false;
+        for (int i = 0; i < mMipmapPending.getCount(); i++) {
+            mMipmapPending.getRect(i, mMipRect);
+            mipmap.invalidate(mMipRect.left, mMipRect.top, mMipRect.right, mMipRect.bottom);
+        }
+        mMipmapPending.clear();
+        if (mIsSmooth && mUnit <= 0.5f) {
+            invalidateFrame();
+        }
+    }
+
+    private void invalidateMipmap(int l, int t, int r, int b) {
+        if (mMipmap != null) {
+            mMipmap.invalidate(l, t, r, b);
+        } else if (mIsMipmapPending) {
+            mMipmapPending.add(l, t, r, b);
+        }
+    }
+
+    /**
+     * Reduces the dirty rectangles of the pyramid from pixels, or from the
+     * bitmap in strips if pixels is null, and returns the work buffer which
+     * may have been grown.
+     */
+    private static int[] updateMipmap(MipmapPyramid mipmap, Bitmap bmp, int[] pixels,
+            Rect rect, int[] work) {
+        for (int i = 0; i < mipmap.getDirtyCount(); i++) {
+            mipmap.getDirtyRect(i, rect);
+            if (pixels != null) {
+                mipmap.update(rect, pixels, 0, bmp.getWidth());
+                continue;
+            }
+            // Read the bitmap in strips of even height to bound the work buffer.
+            int width = rect.width();
+            int bottom = rect.bottom;
+            int strip = Math.max((MIPMAP_WORK_SIZE / width) & ~1, 2);
+            if (work == null) {
+                work = new int[Math.max(MIPMAP_WORK_SIZE, width * 2)];
+            } else if (work.length < width * 2) {
+                work = new int[width * 2];
+            }
+            for (int top = rect.top; top < bottom; top += strip) {
+                rect.top = top;
+                rect.bottom = Math.min(top + strip, bottom);
+                bmp.getPixels(work, 0, width, rect.left, top, width, rect.height());
+                mipmap.update(rect, work, -(top * width + rect.left), width);
+            }
+        }
+        mipmap.clearDirty();
+        return work;
+    }
+
+    private void recycleMipmap() {
+        mMipmapGeneration++;
+        mIsMipmapPending = false;
+        mMipmapPending.clear();
+        if (mMipmap != null) {
+            mMipmap.recycle();
+            mMipmap = null;
+        }
+    }
+
+    private void prepareGridTiles() {
+        int size = Math.max(Math.round(mUnit), 1);
+        if (mGridTile == null || size != mGridTileSize) {
+            recycleGridTiles();
+            mGridTileSize = size;
+
+            int[] pixels = new int[size * size];
+            pixels[0] = mGridColor;
+            if (!mDotted) {
+                for (int i = 1; i < size; i++) {
+                    pixels[i] = mGridColor;
+                    pixels[i * size] = mGridColor;
+                }
+            }
+            mGridTile = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+            mGridPaint.setShader(new BitmapShader(
+                    mGridTile, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT));
+
+            pixels = new int[size * size];
+            for (int x = 0; x < size; x++) {
+                pixels[((size - x) % size) * size + x] = mGridColor;
+            }
+            mHatchTile = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+            mHatchPaint.setShader(new BitmapShader(
+                    mHatchTile, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT));
+        }
+        float scale = mUnit / size;
+        // Nearest sampling would drop or double the lines at fractional units.
+        boolean isFiltered = (scale != 1f);
+        mGridPaint.setFilterBitmap(isFiltered);
+        mHatchPaint.setFilterBitmap(isFiltered);
+        mGridMatrix.setScale(scale, scale);
+        mGridMatrix.postTranslate(mDrawRect.left, mDrawRect.top);
+        mGridPaint.getShader().setLocalMatrix(mGridMatrix);
+        mHatchPaint.getShader().setLocalMatrix(mGridMatrix);
+    }
+
+    private void recycleGridTiles() {
+        mGridPaint.setShader(null);
+        mHatchPaint.setShader(null);
+        if (mGridTile != null) {
+            mGridTile.recycle();
+            mGridTile = null;
+        }
+        if (mHatchTile != null) {
+            mHatchTile.recycle();
+            mHatchTile = null;
+        }
+    }
+
     private void calcCoords() {
-        if (mBitmap == null) {
+        if (!hasSource()) {
             mDrawRect.set(0, 0, 0, 0);
             return;
         }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Overview of the bitmap shown by a {@link MagnifyView}, with a rectangle of
+ * the visible area. The bitmap is reduced once into a thumbnail, and only the
+ * blocks changed through invalidateUnit() are reduced again. The thumbnail is
+ * made anew when the view is given another source. Touching the
+ * overview pans the MagnifyView there.
+ */
+public class MinimapView extends View implements MagnifyView.OnChangeListener {
+
+    private MagnifyView mTarget;
+    private Bitmap  mThumb;
+    private int     mFactor;
+    private int[]   mBlockBuf = new int[0];
+    private int[]   mThumbBuf = new int[0];
+    private DirtyRegion mDirtyRegion = new DirtyRegion(8);
+
+    private Rect    mSrcRect = new Rect();
+    private Rect    mWorkRect = new Rect();
+    private RectF   mThumbRect = new RectF();
+    private RectF   mViewportRect = new RectF();
+    private Paint   mThumbPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Paint   mViewportPaint = new Paint();
+
+    /*-----------------------------------------------------------------------*/
+
+    public MinimapView(Context context) {
+        this(context, null);
+    }
+
+    public MinimapView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public MinimapView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mViewportPaint.setStyle(Paint.Style.STROKE);
+        mViewportPaint.setStrokeWidth(2);
+        mViewportPaint.setColor(Color.RED);
+    }
+
+    /**
+     * Follows the view, which takes this as its OnChangeListener.
+     */
+    public void setMagnifyView(MagnifyView view) {
+        if (mTarget != null) {
+            mTarget.setOnChangeListener(null);
+        }
+        mTarget = view;
+        if (view != null) {
+            view.setOnChangeListener(this);
+        }
+        recycleThumb();
+        invalidate();
+    }
+
+    public void setViewportColor(int color) {
+        mViewportPaint.setColor(color);
+        invalidate();
+    }
+
+    @Override
+    public void onSourceChanged(MagnifyView view) {
+        recycleThumb();
+        invalidate();
+    }
+
+    @Override
+    public void onViewportChanged(MagnifyView view) {
+        view.getSourceRect(mWorkRect);
+        if (!mWorkRect.equals(mSrcRect)) {
+            recycleThumb();
+        }
+        invalidate();
+    }
+
+    @Override
+    public void onUnitsChanged(MagnifyView view, int l, int t, int r, int b) {
+        if (mThumb != null) {
+            int f = mFactor;
+            mDirtyRegion.add(Math.max(l / f, 0), Math.max(t / f, 0),
+                    Math.min((r + f - 1) / f, mThumb.getWidth()),
+                    Math.min((b + f - 1) / f, mThumb.getHeight()));
+            invalidate();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        recycleThumb();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mTarget == null || mTarget.getBitmap() == null || !prepareThumb()) {
+            return;
+        }
+        Rect rect = mWorkRect;
+        for (int i = 0; i < mDirtyRegion.getCount(); i++) {
+            mDirtyRegion.getRect(i, rect);
+            reduce(rect);
+        }
+        mDirtyRegion.clear();
+
+        float scale = calcThumbRect();
+        canvas.drawBitmap(mThumb, null, mThumbRect, mThumbPaint);
+
+        // The visible area is the view bounds mapped into units.
+        mTarget.getBitmapDrawRect(mViewportRect);
+        float unit = mViewportRect.width() / mSrcRect.width();
+        RectF vp = mViewportRect;
+        vp.set(-vp.left / unit, -vp.top / unit,
+                (mTarget.getWidth() - vp.left) / unit, (mTarget.getHeight() - vp.top) / unit);
+        vp.intersect(0, 0, mSrcRect.width(), mSrcRect.height());
+        canvas.drawRect(mThumbRect.left + vp.left * scale, mThumbRect.top + vp.top * scale,
+                mThumbRect.left + vp.right * scale, mThumbRect.top + vp.bottom * scale,
+                mViewportPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mTarget == null || mThumb == null) {
+            return false;
+        }
+        switch (event.getAction()) {
+        case MotionEvent.ACTION_DOWN:
+        case MotionEvent.ACTION_MOVE:
+            float scale = calcThumbRect();
+            mTarget.scrollToUnit((event.getX() - mThumbRect.left) / scale,
+                    (event.getY() - mThumbRect.top) / scale);
+            return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private boolean prepareThumb() {
+        if (mThumb != null) {
+            return true;
+        }
+        mTarget.getSourceRect(mSrcRect);
+        int sw = mSrcRect.width();
+        int sh = mSrcRect.height();
+        int dw = getWidth();
+        int dh = getHeight();
+        if (sw <= 0 || sh <= 0 || dw <= 0 || dh <= 0) {
+            return false;
+        }
+        mFactor = Math.max(Math.max((sw + dw - 1) / dw, (sh + dh - 1) / dh), 1);
+        int tw = (sw + mFactor - 1) / mFactor;
+        int th = (sh + mFactor - 1) / mFactor;
+        mThumb = Bitmap.createBitmap(tw, th, Bitmap.Config.ARGB_8888);
+        mDirtyRegion.clear();
+        mDirtyRegion.add(0, 0, tw, th);
+        return true;
+    }
+
+    private void recycleThumb() {
+        if (mThumb != null) {
+            mThumb.recycle();
+            mThumb = null;
+        }
+        mDirtyRegion.clear();
+    }
+
+    private float calcThumbRect() {
+        float scale = Math.min((float) getWidth() / mSrcRect.width(),
+                (float) getHeight() / mSrcRect.height());
+        float w = mSrcRect.width() * scale;
+        float h = mSrcRect.height() * scale;
+        mThumbRect.set((getWidth() - w) / 2f, (getHeight() - h) / 2f,
+                (getWidth() + w) / 2f, (getHeight() + h) / 2f);
+        return scale;
+    }
+
+    /**
+     * Reduces the blocks of the bitmap under a rectangle of the thumbnail,
+     * reading one row of blocks at a time.
+     */
+    private void reduce(Rect rect) {
+        Bitmap bmp = mTarget.getBitmap();
+        int f = mFactor;
+        int tw = rect.width();
+        int sw = mSrcRect.width();
+        int sh = mSrcRect.height();
+        int x0 = rect.left * f;
+        int bw = Math.min(rect.right * f, sw) - x0;
+        if (mBlockBuf.length < bw * f) {
+            mBlockBuf = new int[bw * f];
+        }
+        if (mThumbBuf.length < tw) {
+            mThumbBuf = new int[tw];
+        }
+        int[] block = mBlockBuf;
+        int[] line = mThumbBuf;
+        for (int ty = rect.top; ty < rect.bottom; ty++) {
+            int y0 = ty * f;
+            int bh = Math.min(f, sh - y0);
+            bmp.getPixels(block, 0, bw, mSrcRect.left + x0, mSrcRect.top + y0, bw, bh);
+            for (int tx = 0; tx < tw; tx++) {
+                int l = tx * f;
+                int r = Math.min(l + f, bw);
+                int sa = 0, sr = 0, sg = 0, sb = 0;
+                for (int y = 0; y < bh; y++) {
+                    for (int x = l; x < r; x++) {
+                        int c = block[y * bw + x];
+                        sa += c >>> 24;
+                        sr += (c >> 16) & 0xFF;
+                        sg += (c >> 8) & 0xFF;
+                        sb += c & 0xFF;
+                    }
+                }
+                int n = (r - l) * bh;
+                line[tx] = (sa / n) << 24 | (sr / n) << 16 | (sg / n) << 8 | (sb / n);
+            }
+            mThumb.setPixels(line, 0, tw, rect.left, ty, tw, 1);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Pixels of the half-size reductions of an image, down to one pixel. Level 0
+ * is the image itself and is not held here. Sizes are rounded up, so the last
+ * pixel of a level may cover less than its share of the image.
+ */
+public class MipmapLevels {
+
+    private int     mLevels;
+    private int[][] mPixels;
+    private int[]   mWidths;
+    private int[]   mHeights;
+
+    /*-----------------------------------------------------------------------*/
+
+    public MipmapLevels(int width, int height) {
+        int levels = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) >> 1, h = (h + 1) >> 1) {
+            levels++;
+        }
+        mLevels = levels;
+        mPixels = new int[levels][];
+        mWidths = new int[levels];
+        mHeights = new int[levels];
+        mWidths[0] = width;
+        mHeights[0] = height;
+        for (int i = 1; i < levels; i++) {
+            mWidths[i] = (mWidths[i - 1] + 1) >> 1;
+            mHeights[i] = (mHeights[i - 1] + 1) >> 1;
+            mPixels[i] = new int[mWidths[i] * mHeights[i]];
+        }
+    }
+
+    public int getLevelCount() {
+        return mLevels;
+    }
+
+    public int getWidth(int level) {
+        return mWidths[level];
+    }
+
+    public int getHeight(int level) {
+        return mHeights[level];
+    }
+
+    public int[] getPixels(int level) {
+        return mPixels[level];
+    }
+
+    /**
+     * Returns the level to be drawn at the scale, where 1 is the original size.
+     */
+    public int getLevelForScale(float scale) {
+        int level = 0;
+        while (level < mLevels - 1 && scale <= 0.5f) {
+            scale *= 2f;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Reduces the area (l, t)-(r, b) of level 0 into every level. Pixel (x, y)
+     * of level 0 is read from src[offset + y * stride + x], so src only has to
+     * cover the area. If outBounds isn't null, the area reduced on each level
+     * is stored into it from index level * 4 as left, top, right and bottom.
+     */
+    public void update(int l, int t, int r, int b, int[] src, int offset, int stride,
+            int[] outBounds) {
+        for (int level = 1; level < mLevels; level++) {
+            // A pixel of the next level depends on a 2x2 block, so align to even bounds.
+            l >>= 1;
+            t >>= 1;
+            r = Math.min((r + 1) >> 1, mWidths[level]);
+            b = Math.min((b + 1) >> 1, mHeights[level]);
+            if (level > 1) {
+                src = mPixels[level - 1];
+                offset = 0;
+                stride = mWidths[level - 1];
+            }
+            reduce(level, src, offset, stride, l, t, r, b);
+            if (outBounds != null) {
+                outBounds[level * 4] = l;
+                outBounds[level * 4 + 1] = t;
+                outBounds[level * 4 + 2] = r;
+                outBounds[level * 4 + 3] = b;
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void reduce(int level, int[] src, int offset, int stride, int l, int t, int r, int b) {
+        int[] dst = mPixels[level];
+        int dw = mWidths[level];
+        int sw = mWidths[level - 1];
+        int sh = mHeights[level - 1];
+        for (int y = t; y < b; y++) {
+            int sy1 = Math.min(y * 2, sh - 1);
+            int sy2 = Math.min(y * 2 + 1, sh - 1);
+            for (int x = l; x < r; x++) {
+                int sx1 = Math.min(x * 2, sw - 1);
+                int sx2 = Math.min(x * 2 + 1, sw - 1);
+                dst[y * dw + x] = average(
+                        src[offset + sy1 * stride + sx1], src[offset + sy1 * stride + sx2],
+                        src[offset + sy2 * stride + sx1], src[offset + sy2 * stride + sx2]);
+            }
+        }
+    }
+
+    private static int average(int c1, int c2, int c3, int c4) {
+        // Colors are weighted by alpha so that transparent pixels don't darken the result.
+        int a1 = c1 >>> 24, a2 = c2 >>> 24, a3 = c3 >>> 24, a4 = c4 >>> 24;
+        int sa = a1 + a2 + a3 + a4;
+        if (sa == 0) {
+            return 0;
+        }
+        int r = (((c1 >> 16) & 0xFF) * a1 + ((c2 >> 16) & 0xFF) * a2
+                + ((c3 >> 16) & 0xFF) * a3 + ((c4 >> 16) & 0xFF) * a4) / sa;
+        int g = (((c1 >> 8) & 0xFF) * a1 + ((c2 >> 8) & 0xFF) * a2
+                + ((c3 >> 8) & 0xFF) * a3 + ((c4 >> 8) & 0xFF) * a4) / sa;
+        int b = ((c1 & 0xFF) * a1 + (c2 & 0xFF) * a2 + (c3 & 0xFF) * a3 + (c4 & 0xFF) * a4) / sa;
+        return ((sa + 2) >> 2) << 24 | r << 16 | g << 8 | b;
+    }
+
+}
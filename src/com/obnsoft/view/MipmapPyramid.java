@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Half-size reductions of an image as bitmaps, down to one pixel. Level 0 is
+ * the image itself and is not held here. The pixels are reduced by
+ * {@link MipmapLevels}. Changed areas are recorded with invalidate() and only
+ * those are reduced again by update().
+ */
+public class MipmapPyramid {
+
+    private int     mWidth;
+    private int     mHeight;
+    private MipmapLevels mLevels;
+    private Bitmap[] mBitmaps;
+    private int[]   mBounds;
+    private DirtyRegion mDirtyRegion = new DirtyRegion(8);
+
+    /*-----------------------------------------------------------------------*/
+
+    public MipmapPyramid(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mLevels = new MipmapLevels(width, height);
+        int levels = mLevels.getLevelCount();
+        mBitmaps = new Bitmap[levels];
+        mBounds = new int[levels * 4];
+        for (int i = 1; i < levels; i++) {
+            mBitmaps[i] = Bitmap.createBitmap(mLevels.getWidth(i), mLevels.getHeight(i),
+                    Bitmap.Config.ARGB_8888);
+        }
+        invalidate(0, 0, width, height);
+    }
+
+    public int getLevelCount() {
+        return mLevels.getLevelCount();
+    }
+
+    /**
+     * Returns the level to be drawn at the scale, where 1 is the original size.
+     */
+    public int getLevelForScale(float scale) {
+        return mLevels.getLevelForScale(scale);
+    }
+
+    public Bitmap getBitmap(int level) {
+        return mBitmaps[level];
+    }
+
+    /**
+     * Maps a rectangle of level 0 onto the level.
+     */
+    public void mapRect(int level, Rect rect, Rect outRect) {
+        outRect.set(rect.left >> level, rect.top >> level,
+                Math.min(Math.max((rect.right + (1 << level) - 1) >> level, 1),
+                        mLevels.getWidth(level)),
+                Math.min(Math.max((rect.bottom + (1 << level) - 1) >> level, 1),
+                        mLevels.getHeight(level)));
+    }
+
+    /**
+     * Records a changed area of level 0, given as an exclusive rectangle.
+     * It is widened to even bounds, since the next level reduces 2x2 blocks.
+     */
+    public void invalidate(int l, int t, int r, int b) {
+        mDirtyRegion.add(Math.max(l & ~1, 0), Math.max(t & ~1, 0),
+                Math.min((r + 1) & ~1, mWidth), Math.min((b + 1) & ~1, mHeight));
+    }
+
+    public boolean isDirty() {
+        return !mDirtyRegion.isEmpty();
+    }
+
+    public int getDirtyCount() {
+        return mDirtyRegion.getCount();
+    }
+
+    public void getDirtyRect(int index, Rect outRect) {
+        mDirtyRegion.getRect(index, outRect);
+    }
+
+    /**
+     * Reduces a part of a dirty rectangle again. It may be split into strips
+     * whose bounds are even. Pixel (x, y) of level 0 is read from
+     * src[offset + y * stride + x], so src only has to cover the part.
+     * Call {@link #clearDirty()} when all dirty rectangles are updated.
+     */
+    public void update(Rect rect, int[] src, int offset, int stride) {
+        int[] bounds = mBounds;
+        mLevels.update(rect.left, rect.top, rect.right, rect.bottom, src, offset, stride, bounds);
+        for (int level = 1; level < mBitmaps.length; level++) {
+            int l = bounds[level * 4], t = bounds[level * 4 + 1];
+            int r = bounds[level * 4 + 2], b = bounds[level * 4 + 3];
+            int w = mLevels.getWidth(level);
+            mBitmaps[level].setPixels(mLevels.getPixels(level), t * w + l, w, l, t, r - l, b - t);
+        }
+    }
+
+    public void clearDirty() {
+        mDirtyRegion.clear();
+    }
+
+    public void recycle() {
+        for (int i = 1; i < mBitmaps.length; i++) {
+            mBitmaps[i].recycle();
+        }
+    }
+
+}
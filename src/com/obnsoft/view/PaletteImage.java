@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Tile source for {@link MagnifyView} which holds an image of up to 256 colors
+ * as one byte per pixel and a palette. Only the tiles being drawn are expanded
+ * into ARGB, and they are kept in an LRU cache bounded by a byte budget.
+ * Each tile remembers which palette entries it uses, so changing an entry
+ * expands again only the tiles using it.
+ */
+public class PaletteImage implements MagnifyView.TileSource {
+
+    public static final int MAX_COLORS = 256;
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private static final int USAGE_SIZE = MAX_COLORS / 32;
+
+    private int     mWidth;
+    private int     mHeight;
+    private int     mTileSize;
+    private int     mCols;
+    private int     mRows;
+    private byte[]  mIndices;
+    private int[]   mPalette = new int[MAX_COLORS];
+    private int[]   mUsage;
+    private boolean[] mStale;
+    private int[]   mExpandBuf;
+    private int[]   mUsageBuf = new int[USAGE_SIZE];
+
+    private TileCache mCache;
+
+    /*-----------------------------------------------------------------------*/
+
+    public PaletteImage(int width, int height, int maxBytes) {
+        this(width, height, DEFAULT_TILE_SIZE, maxBytes);
+    }
+
+    public PaletteImage(int width, int height, int tileSize, int maxBytes) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mCache = new TileCache(maxBytes);
+        mCols = (width + tileSize - 1) / tileSize;
+        mRows = (height + tileSize - 1) / tileSize;
+        mIndices = new byte[width * height];
+        mUsage = new int[mCols * mRows * USAGE_SIZE];
+        mStale = new boolean[mCols * mRows];
+        mExpandBuf = new int[tileSize * tileSize];
+        for (int i = 0; i < mCols * mRows; i++) {
+            // Every pixel starts with index 0.
+            mUsage[i * USAGE_SIZE] = 1;
+        }
+    }
+
+    /**
+     * Converts a bitmap into indices and a palette in the order colors appear.
+     *
+     * @throws IllegalArgumentException if the bitmap has more than 256 colors.
+     */
+    public static PaletteImage fromBitmap(Bitmap bmp, int tileSize, int maxBytes) {
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        PaletteImage image = new PaletteImage(width, height, tileSize, maxBytes);
+        // Open addressing table of colors, where a slot holds index + 1 or 0 if empty.
+        int[] keys = new int[MAX_COLORS * 2];
+        int[] slots = new int[MAX_COLORS * 2];
+        int mask = slots.length - 1;
+        int count = 0;
+        int lastColor = 0;
+        int lastIndex = -1;
+        int[] line = new int[width];
+        for (int y = 0; y < height; y++) {
+            bmp.getPixels(line, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int color = line[x];
+                if (color != lastColor || lastIndex < 0) {
+                    int slot = (color * 0x9E3779B9) >>> 23;
+                    while (slots[slot] != 0 && keys[slot] != color) {
+                        slot = (slot + 1) & mask;
+                    }
+                    if (slots[slot] == 0) {
+                        if (count == MAX_COLORS) {
+                            throw new IllegalArgumentException("Too many colors");
+                        }
+                        keys[slot] = color;
+                        slots[slot] = ++count;
+                        image.mPalette[count - 1] = color;
+                    }
+                    lastColor = color;
+                    lastIndex = slots[slot] - 1;
+                }
+                image.mIndices[y * width + x] = (byte) lastIndex;
+            }
+        }
+        image.rebuildUsage();
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public Bitmap getTile(int col, int row) {
+        if (col < 0 || row < 0 || col >= mCols || row >= mRows) {
+            return null;
+        }
+        int tile = row * mCols + col;
+        Bitmap bmp = mCache.get(tile);
+        if (bmp == null) {
+            int w = Math.min(mTileSize, mWidth - col * mTileSize);
+            int h = Math.min(mTileSize, mHeight - row * mTileSize);
+            bmp = mCache.obtain(w, h);
+            mCache.put(tile, bmp);
+            mStale[tile] = true;
+        }
+        if (mStale[tile]) {
+            expandTile(col, row, bmp);
+            mStale[tile] = false;
+        }
+        return bmp;
+    }
+
+    public int getPaletteColor(int index) {
+        return mPalette[index];
+    }
+
+    /**
+     * Changes a palette entry. The pixel indices are untouched; the tiles
+     * using the entry are expanded again when they are drawn next.
+     *
+     * @param outRect receives the bounds of those tiles in image coordinates,
+     *                to be passed to MagnifyView's invalidateUnit(); may be null.
+     * @return true if any pixel uses the entry.
+     */
+    public boolean setPaletteColor(int index, int color, Rect outRect) {
+        if (outRect != null) {
+            outRect.setEmpty();
+        }
+        if (mPalette[index] == color) {
+            return false;
+        }
+        mPalette[index] = color;
+        int word = index >> 5;
+        int bit = 1 << (index & 31);
+        boolean used = false;
+        for (int row = 0; row < mRows; row++) {
+            for (int col = 0; col < mCols; col++) {
+                int tile = row * mCols + col;
+                if ((mUsage[tile * USAGE_SIZE + word] & bit) == 0) {
+                    continue;
+                }
+                mStale[tile] = true;
+                used = true;
+                if (outRect != null) {
+                    int x = col * mTileSize;
+                    int y = row * mTileSize;
+                    outRect.union(x, y,
+                            Math.min(x + mTileSize, mWidth), Math.min(y + mTileSize, mHeight));
+                }
+            }
+        }
+        return used;
+    }
+
+    public int getIndex(int x, int y) {
+        return mIndices[y * mWidth + x] & 0xFF;
+    }
+
+    public int getColor(int x, int y) {
+        return mPalette[mIndices[y * mWidth + x] & 0xFF];
+    }
+
+    public void setIndex(int x, int y, int index) {
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
+            return;
+        }
+        int pos = y * mWidth + x;
+        if ((mIndices[pos] & 0xFF) != index) {
+            mIndices[pos] = (byte) index;
+            int tile = (y / mTileSize) * mCols + x / mTileSize;
+            // The bit of the old index is cleared when the tile is expanded next.
+            mUsage[tile * USAGE_SIZE + (index >> 5)] |= 1 << (index & 31);
+            mStale[tile] = true;
+        }
+    }
+
+    /**
+     * Returns the memory used by the indices and the expanded tiles.
+     */
+    public int getByteCount() {
+        return mIndices.length + mCache.getByteCount();
+    }
+
+    public void clearCache() {
+        mCache.clear();
+    }
+
+    public void recycle() {
+        clearCache();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void expandTile(int col, int row, Bitmap bmp) {
+        int w = bmp.getWidth();
+        int h = bmp.getHeight();
+        int x0 = col * mTileSize;
+        int y0 = row * mTileSize;
+        int[] buf = mExpandBuf;
+        int[] palette = mPalette;
+        int[] usage = mUsageBuf;
+        for (int i = 0; i < USAGE_SIZE; i++) {
+            usage[i] = 0;
+        }
+        for (int y = 0; y < h; y++) {
+            int src = (y0 + y) * mWidth + x0;
+            int dst = y * w;
+            for (int x = 0; x < w; x++) {
+                int index = mIndices[src + x] & 0xFF;
+                buf[dst + x] = palette[index];
+                usage[index >> 5] |= 1 << (index & 31);
+            }
+        }
+        bmp.setPixels(buf, 0, w, 0, 0, w, h);
+        System.arraycopy(usage, 0, mUsage, (row * mCols + col) * USAGE_SIZE, USAGE_SIZE);
+    }
+
+    private void rebuildUsage() {
+        for (int i = 0; i < mUsage.length; i++) {
+            mUsage[i] = 0;
+        }
+        for (int y = 0; y < mHeight; y++) {
+            int rowBase = (y / mTileSize) * mCols;
+            for (int x = 0; x < mWidth; x++) {
+                int index = mIndices[y * mWidth + x] & 0xFF;
+                mUsage[(rowBase + x / mTileSize) * USAGE_SIZE + (index >> 5)] |= 1 << (index & 31);
+            }
+        }
+    }
+
+}
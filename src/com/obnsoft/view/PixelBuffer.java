@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Batched write surface over the pixels of a {@link Bitmap}. Writes go to an
+ * int array and the touched cells are collected into a few dirty rectangles,
+ * which {@link #flush(DirtyRegion)} pushes to the bitmap with one setPixels
+ * call per rectangle. Coordinates are bitmap coordinates, and rectangles are
+ * inclusive like {@link MagnifyView#invalidateUnit(int, int, int, int)}.
+ * A buffer may also stand alone without a bitmap, when only the dirty
+ * rectangles are wanted from a flush.
+ */
+public class PixelBuffer {
+
+    private static final int MAX_DIRTY_RECTS = 8;
+
+    private int     mWidth;
+    private int     mHeight;
+    private int[]   mPixels;
+    private Bitmap  mBitmap;
+    private Rect    mWorkRect = new Rect();
+    private DirtyRegion mDirtyRegion = new DirtyRegion(MAX_DIRTY_RECTS);
+
+    private Callback mCallback;
+    private ArrayList<ChangeListener> mListeners = new ArrayList<ChangeListener>();
+    private ChangeListener[] mListenerArray = new ChangeListener[0];
+    private int[]   mOldRow = new int[0];
+
+    /*-----------------------------------------------------------------------*/
+
+    public interface Callback {
+        public void onPixelBufferDirty(PixelBuffer buffer);
+    }
+
+    /**
+     * Receives every pixel whose color is changed through this buffer.
+     * index is y * getWidth() + x.
+     */
+    public interface ChangeListener {
+        public void onPixelChanged(int index, int oldColor, int newColor);
+        /**
+         * Receives a row of count pixels written at once from index. Their
+         * colors were oldColors[oldOffset...] and are newColors[newOffset...],
+         * and pixels which kept their colors are included.
+         */
+        public void onPixelsChanged(int index, int count,
+                int[] oldColors, int oldOffset, int[] newColors, int newOffset);
+        /**
+         * Called when all pixels are replaced at once by {@link #replacePixels(int[])},
+         * which reports none of them one by one.
+         */
+        public void onPixelsReplaced();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public PixelBuffer(Bitmap bmp) {
+        if (!bmp.isMutable()) {
+            throw new IllegalArgumentException("Bitmap must be mutable");
+        }
+        mBitmap = bmp;
+        mWidth = bmp.getWidth();
+        mHeight = bmp.getHeight();
+        mPixels = new int[mWidth * mHeight];
+        bmp.getPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+    }
+
+    public PixelBuffer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mPixels = new int[width * height];
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+            mListenerArray = mListeners.toArray(new ChangeListener[mListeners.size()]);
+        }
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        if (mListeners.remove(listener)) {
+            mListenerArray = mListeners.toArray(new ChangeListener[mListeners.size()]);
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Returns the backing array, laid out row by row with a stride of getWidth().
+     * Call {@link #markDirty(int, int, int, int)} after writing to it directly.
+     * Such writes are not reported to the change listeners.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return mPixels[y * mWidth + x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        if (x >= 0 && y >= 0 && x < mWidth && y < mHeight) {
+            put(y * mWidth + x, color);
+            markDirtyInternal(x, y, x + 1, y + 1);
+        }
+    }
+
+    /**
+     * Copies a rectangle of pixels into dst like {@link Bitmap#getPixels}, row by row.
+     */
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int width, int height) {
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(mPixels, (y + i) * mWidth + x, dst, offset + i * stride, width);
+        }
+    }
+
+    /**
+     * Writes a rectangle of pixels from src like {@link Bitmap#setPixels}, clipped
+     * to the buffer. Rows are copied in bulk and reported to the change
+     * listeners row by row.
+     */
+    public void setPixels(int[] src, int offset, int stride, int x, int y, int width, int height) {
+        mWorkRect.set(x, y, x + width, y + height);
+        if (!mWorkRect.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+        int l = mWorkRect.left, t = mWorkRect.top, r = mWorkRect.right, b = mWorkRect.bottom;
+        int w = r - l;
+        ChangeListener[] listeners = mListenerArray;
+        if (listeners.length > 0 && mOldRow.length < w) {
+            mOldRow = new int[w];
+        }
+        offset += (t - y) * stride + (l - x);
+        for (int row = t; row < b; row++, offset += stride) {
+            int index = row * mWidth + l;
+            if (listeners.length > 0) {
+                System.arraycopy(mPixels, index, mOldRow, 0, w);
+            }
+            System.arraycopy(src, offset, mPixels, index, w);
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onPixelsChanged(index, w, mOldRow, 0, mPixels, index);
+            }
+        }
+        markDirtyInternal(l, t, r, b);
+    }
+
+    /**
+     * Replaces all pixels with src, laid out like {@link #getPixels()}, such as
+     * when another image is swapped in. The whole buffer is marked dirty.
+     */
+    public void replacePixels(int[] src) {
+        System.arraycopy(src, 0, mPixels, 0, mPixels.length);
+        ChangeListener[] listeners = mListenerArray;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onPixelsReplaced();
+        }
+        markDirtyInternal(0, 0, mWidth, mHeight);
+    }
+
+    public void drawSpan(int y, int x1, int x2, int color) {
+        fillRect(x1, y, x2, y, color);
+    }
+
+    public void fillRect(int l, int t, int r, int b, int color) {
+        mWorkRect.set(Math.min(l, r), Math.min(t, b), Math.max(l, r) + 1, Math.max(t, b) + 1);
+        if (!mWorkRect.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+        for (int y = mWorkRect.top; y < mWorkRect.bottom; y++) {
+            int offset = y * mWidth;
+            for (int x = mWorkRect.left; x < mWorkRect.right; x++) {
+                put(offset + x, color);
+            }
+        }
+        markDirtyInternal(mWorkRect.left, mWorkRect.top, mWorkRect.right, mWorkRect.bottom);
+    }
+
+    /**
+     * Writes count cells whose coordinates are stored in pairs in coords, and
+     * marks their bounds dirty as one rectangle.
+     */
+    public void plot(int[] coords, int count, int color) {
+        int l = Integer.MAX_VALUE, t = Integer.MAX_VALUE;
+        int r = Integer.MIN_VALUE, b = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int x = coords[i * 2];
+            int y = coords[i * 2 + 1];
+            if (x >= 0 && y >= 0 && x < mWidth && y < mHeight) {
+                put(y * mWidth + x, color);
+                if (x < l) l = x;
+                if (y < t) t = y;
+                if (x > r) r = x;
+                if (y > b) b = y;
+            }
+        }
+        if (l <= r) {
+            markDirtyInternal(l, t, r + 1, b + 1);
+        }
+    }
+
+    public void markDirty(int l, int t, int r, int b) {
+        mWorkRect.set(Math.min(l, r), Math.min(t, b), Math.max(l, r) + 1, Math.max(t, b) + 1);
+        if (mWorkRect.intersect(0, 0, mWidth, mHeight)) {
+            markDirtyInternal(mWorkRect.left, mWorkRect.top, mWorkRect.right, mWorkRect.bottom);
+        }
+    }
+
+    public boolean isDirty() {
+        return !mDirtyRegion.isEmpty();
+    }
+
+    /**
+     * Pushes the dirty rectangles to the bitmap. They are handed to outRegion
+     * (which may be null) so that the caller can invalidate them.
+     */
+    public void flush(DirtyRegion outRegion) {
+        DirtyRegion region = mDirtyRegion;
+        Rect rect = mWorkRect;
+        for (int i = 0; i < region.getCount(); i++) {
+            region.getRect(i, rect);
+            if (mBitmap != null) {
+                mBitmap.setPixels(mPixels, rect.top * mWidth + rect.left, mWidth,
+                        rect.left, rect.top, rect.width(), rect.height());
+            }
+            if (outRegion != null) {
+                outRegion.add(rect);
+            }
+        }
+        region.clear();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Writes a pixel and reports the change without marking it dirty.
+     */
+    void put(int index, int color) {
+        int oldColor = mPixels[index];
+        if (oldColor != color) {
+            mPixels[index] = color;
+            ChangeListener[] listeners = mListenerArray;
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onPixelChanged(index, oldColor, color);
+            }
+        }
+    }
+
+    private void markDirtyInternal(int l, int t, int r, int b) {
+        boolean wasClean = mDirtyRegion.isEmpty();
+        mDirtyRegion.add(l, t, r, b);
+        if (wasClean && mCallback != null) {
+            mCallback.onPixelBufferDirty(this);
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Undo and redo history of the edits made through a {@link PixelBuffer}.
+ * Each operation stores only the changed pixels, as runs of consecutive
+ * indices sharing the same old and new colors, and the operations are kept
+ * in a ring bounded by a count and a byte cap.
+ * Changes made outside beginOperation() and endOperation() are collected into
+ * an implicit operation closed by the next call of either method.
+ */
+public class PixelHistory implements PixelBuffer.ChangeListener {
+
+    public static final int DEFAULT_MAX_OPERATIONS = 64;
+
+    /* An operation is {left, top, right, bottom, (start, length, old, new)...}. */
+    private static final int HEADER_SIZE = 4;
+    private static final int RUN_SIZE = 4;
+    private static final int OVERHEAD_BYTES = 32;
+
+    private PixelBuffer mBuffer;
+    private int     mMaxBytes;
+    private int     mCurBytes;
+    private int[][] mOps;
+    private int     mStart;
+    private int     mCount;
+    private int     mCursor;
+
+    private int[]   mRuns = new int[RUN_SIZE * 64];
+    private int     mRunsSize;
+    private boolean mIsApplying;
+
+    /*-----------------------------------------------------------------------*/
+
+    public PixelHistory(PixelBuffer buffer, int maxBytes) {
+        this(buffer, maxBytes, DEFAULT_MAX_OPERATIONS);
+    }
+
+    public PixelHistory(PixelBuffer buffer, int maxBytes, int maxOperations) {
+        if (maxOperations < 1) {
+            throw new IllegalArgumentException("maxOperations must be positive");
+        }
+        mBuffer = buffer;
+        mMaxBytes = maxBytes;
+        mOps = new int[maxOperations][];
+        buffer.addChangeListener(this);
+    }
+
+    public void detach() {
+        endOperation();
+        mBuffer.removeChangeListener(this);
+    }
+
+    public void beginOperation() {
+        endOperation();
+    }
+
+    public void endOperation() {
+        if (mRunsSize == 0) {
+            return;
+        }
+        int[] op = new int[HEADER_SIZE + mRunsSize];
+        System.arraycopy(mRuns, 0, op, HEADER_SIZE, mRunsSize);
+        calcBounds(op);
+        mRunsSize = 0;
+        if (mRuns.length > RUN_SIZE * 1024) {
+            mRuns = new int[RUN_SIZE * 64];
+        }
+        push(op);
+    }
+
+    public boolean canUndo() {
+        return (mCursor > 0 || mRunsSize > 0);
+    }
+
+    public boolean canRedo() {
+        return (mCursor < mCount && mRunsSize == 0);
+    }
+
+    public boolean undo() {
+        endOperation();
+        if (mCursor == 0) {
+            return false;
+        }
+        mCursor--;
+        int[] op = mOps[(mStart + mCursor) % mOps.length];
+        mIsApplying = true;
+        for (int p = op.length - RUN_SIZE; p >= HEADER_SIZE; p -= RUN_SIZE) {
+            int start = op[p];
+            int oldColor = op[p + 2];
+            for (int i = start + op[p + 1] - 1; i >= start; i--) {
+                mBuffer.put(i, oldColor);
+            }
+        }
+        mIsApplying = false;
+        mBuffer.markDirty(op[0], op[1], op[2], op[3]);
+        return true;
+    }
+
+    public boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        int[] op = mOps[(mStart + mCursor) % mOps.length];
+        mCursor++;
+        mIsApplying = true;
+        for (int p = HEADER_SIZE; p < op.length; p += RUN_SIZE) {
+            int start = op[p];
+            int newColor = op[p + 3];
+            for (int i = start, end = start + op[p + 1]; i < end; i++) {
+                mBuffer.put(i, newColor);
+            }
+        }
+        mIsApplying = false;
+        mBuffer.markDirty(op[0], op[1], op[2], op[3]);
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mOps.length; i++) {
+            mOps[i] = null;
+        }
+        mStart = mCount = mCursor = mCurBytes = 0;
+        mRunsSize = 0;
+    }
+
+    public int getByteCount() {
+        return mCurBytes + mRunsSize * 4;
+    }
+
+    @Override
+    public void onPixelChanged(int index, int oldColor, int newColor) {
+        if (!mIsApplying) {
+            record(index, oldColor, newColor);
+        }
+    }
+
+    @Override
+    public void onPixelsChanged(int index, int count,
+            int[] oldColors, int oldOffset, int[] newColors, int newOffset) {
+        if (mIsApplying) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int oldColor = oldColors[oldOffset + i];
+            int newColor = newColors[newOffset + i];
+            if (oldColor != newColor) {
+                record(index + i, oldColor, newColor);
+            }
+        }
+    }
+
+    /**
+     * The operations belong to the pixels before, so they are dropped.
+     */
+    @Override
+    public void onPixelsReplaced() {
+        clear();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void record(int index, int oldColor, int newColor) {
+        int p = mRunsSize - RUN_SIZE;
+        if (p >= 0 && mRuns[p] + mRuns[p + 1] == index
+                && mRuns[p + 2] == oldColor && mRuns[p + 3] == newColor) {
+            mRuns[p + 1]++;
+            return;
+        }
+        if (mRunsSize + RUN_SIZE > mRuns.length) {
+            int[] runs = new int[mRuns.length * 2];
+            System.arraycopy(mRuns, 0, runs, 0, mRunsSize);
+            mRuns = runs;
+        }
+        mRuns[mRunsSize++] = index;
+        mRuns[mRunsSize++] = 1;
+        mRuns[mRunsSize++] = oldColor;
+        mRuns[mRunsSize++] = newColor;
+    }
+
+    private void push(int[] op) {
+        // Recording a new operation discards the redo branch.
+        while (mCount > mCursor) {
+            mCount--;
+            dropAt((mStart + mCount) % mOps.length);
+        }
+        int bytes = sizeOf(op);
+        while (mCount > 0 && (mCount == mOps.length || mCurBytes + bytes > mMaxBytes)) {
+            dropAt(mStart);
+            mStart = (mStart + 1) % mOps.length;
+            mCount--;
+            mCursor--;
+        }
+        if (bytes > mMaxBytes) {
+            // Too large to be kept at all; older states can't be reached any more.
+            return;
+        }
+        mOps[(mStart + mCount) % mOps.length] = op;
+        mCount++;
+        mCursor++;
+        mCurBytes += bytes;
+    }
+
+    private void dropAt(int pos) {
+        mCurBytes -= sizeOf(mOps[pos]);
+        mOps[pos] = null;
+    }
+
+    private void calcBounds(int[] op) {
+        int width = mBuffer.getWidth();
+        int l = Integer.MAX_VALUE, t = Integer.MAX_VALUE;
+        int r = Integer.MIN_VALUE, b = Integer.MIN_VALUE;
+        for (int p = HEADER_SIZE; p < op.length; p += RUN_SIZE) {
+            int first = op[p];
+            int last = first + op[p + 1] - 1;
+            int y1 = first / width;
+            int y2 = last / width;
+            int x1 = (y1 == y2) ? first % width : 0;
+            int x2 = (y1 == y2) ? last % width : width - 1;
+            if (x1 < l) l = x1;
+            if (x2 > r) r = x2;
+            if (y1 < t) t = y1;
+            if (y2 > b) b = y2;
+        }
+        op[0] = l;
+        op[1] = t;
+        op[2] = r;
+        op[3] = b;
+    }
+
+    private static int sizeOf(int[] op) {
+        return op.length * 4 + OVERHEAD_BYTES;
+    }
+
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Autosave of the pixels of a {@link PixelBuffer} into a directory. Changed
+ * tiles are collected while editing, and {@link #checkpoint()} copies them
+ * and appends them to a memory-mapped journal on a worker thread. When the
+ * journal grows as large as the image, it is compacted into a PNG base image.
+ * After a crash, {@link #restore(File)} decodes the base and replays the journal.
+ */
+public class PixelJournal implements PixelBuffer.ChangeListener {
+
+    private static final String TAG = "PixelJournal";
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private static final String BASE_PREFIX = "base-";
+    private static final String BASE_SUFFIX = ".png";
+    private static final String BASE_TEMP_FILE = "base.tmp";
+    private static final String JOURNAL_FILE = "journal.bin";
+
+    /* Each base image is named by its generation, and the journal is
+     * {magic, generation, width, height, tileSize} followed by records of
+     * {length, col, row, width, height, pixels...}, where length counts ints.
+     * A record of length 0 ends the journal, and it is replayed only over the
+     * base of the same generation. */
+    private static final int MAGIC = 0x504A524E;
+    private static final int HEADER_INTS = 5;
+    private static final int RECORD_HEADER_INTS = 5;
+    private static final int MAP_GROW_BYTES = 1024 * 1024;
+
+    private PixelBuffer mBuffer;
+    private File    mDir;
+    private int     mWidth;
+    private int     mHeight;
+    private int     mTileSize;
+    private int     mTileShift;
+    private int     mCols;
+    private boolean[] mDirtyTiles;
+    private int     mDirtyCount;
+    private int     mJournalBytes;
+    private int     mCompactBytes;
+
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /* Used only on the worker thread. */
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mMap;
+    private IntBuffer mInts;
+    private int     mPosition;
+    private int     mGeneration;
+
+    /*-----------------------------------------------------------------------*/
+
+    public PixelJournal(PixelBuffer buffer, File dir) {
+        this(buffer, dir, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Starts a journal for the buffer. The current pixels are written as the
+     * new base image in the background, replacing what the directory had.
+     *
+     * @param tileSize must be a power of two.
+     */
+    public PixelJournal(PixelBuffer buffer, File dir, int tileSize) {
+        if (tileSize <= 0 || (tileSize & (tileSize - 1)) != 0) {
+            throw new IllegalArgumentException("tileSize must be a power of two");
+        }
+        mBuffer = buffer;
+        mDir = dir;
+        mWidth = buffer.getWidth();
+        mHeight = buffer.getHeight();
+        mTileSize = tileSize;
+        mTileShift = Integer.numberOfTrailingZeros(tileSize);
+        mCols = (mWidth + tileSize - 1) >> mTileShift;
+        mDirtyTiles = new boolean[mCols * ((mHeight + tileSize - 1) >> mTileShift)];
+        mCompactBytes = mWidth * mHeight * 4;
+        mGeneration = findLatestGeneration(dir);
+        buffer.addChangeListener(this);
+        compact();
+    }
+
+    /**
+     * Marks an area whose pixels were written directly to
+     * {@link PixelBuffer#getPixels()}. The rectangle is inclusive.
+     */
+    public void markDirty(int l, int t, int r, int b) {
+        int colStart = Math.max(Math.min(l, r), 0) >> mTileShift;
+        int rowStart = Math.max(Math.min(t, b), 0) >> mTileShift;
+        int colEnd = Math.min(Math.max(l, r), mWidth - 1) >> mTileShift;
+        int rowEnd = Math.min(Math.max(t, b), mHeight - 1) >> mTileShift;
+        for (int row = rowStart; row <= rowEnd; row++) {
+            for (int col = colStart; col <= colEnd; col++) {
+                markTile(row * mCols + col);
+            }
+        }
+    }
+
+    @Override
+    public void onPixelChanged(int index, int oldColor, int newColor) {
+        int x = index % mWidth;
+        int y = index / mWidth;
+        markTile((y >> mTileShift) * mCols + (x >> mTileShift));
+    }
+
+    @Override
+    public void onPixelsChanged(int index, int count,
+            int[] oldColors, int oldOffset, int[] newColors, int newOffset) {
+        int first = 0;
+        int last = count - 1;
+        while (first <= last && oldColors[oldOffset + first] == newColors[newOffset + first]) {
+            first++;
+        }
+        while (last > first && oldColors[oldOffset + last] == newColors[newOffset + last]) {
+            last--;
+        }
+        if (first <= last) {
+            int x = index % mWidth;
+            int y = index / mWidth;
+            markDirty(x + first, y, x + last, y);
+        }
+    }
+
+    @Override
+    public void onPixelsReplaced() {
+        markDirty(0, 0, mWidth - 1, mHeight - 1);
+    }
+
+    /**
+     * Hands the changed tiles to the worker thread. This only copies them, so
+     * it can be called on every stroke. The journal is compacted here when it
+     * has grown as large as the image.
+     */
+    public void checkpoint() {
+        if (mDirtyCount == 0) {
+            return;
+        }
+        if (mJournalBytes >= mCompactBytes) {
+            compact();
+            return;
+        }
+        final int[][] records = new int[mDirtyCount][];
+        int[] pixels = mBuffer.getPixels();
+        for (int tile = 0, n = 0; n < records.length; tile++) {
+            if (mDirtyTiles[tile]) {
+                mDirtyTiles[tile] = false;
+                records[n++] = copyTile(pixels, tile);
+            }
+        }
+        mDirtyCount = 0;
+        for (int[] record : records) {
+            mJournalBytes += record.length * 4;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int[] record : records) {
+                        appendRecord(record);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to append the journal.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all pixels as a new base image and empties the journal,
+     * both in the background.
+     */
+    public void compact() {
+        for (int i = 0; i < mDirtyTiles.length; i++) {
+            mDirtyTiles[i] = false;
+        }
+        mDirtyCount = 0;
+        mJournalBytes = 0;
+        final int[] pixels = mBuffer.getPixels().clone();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBase(pixels, mGeneration + 1);
+                    mGeneration++;
+                    resetJournal();
+                    deleteOldBases();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to compact the journal.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the remaining changes and stops the worker thread once they are written.
+     */
+    public void close() {
+        checkpoint();
+        mBuffer.removeChangeListener(this);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeFile();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Rebuilds the last saved image from a directory, or returns null if
+     * nothing is saved there. Runs on the calling thread.
+     */
+    public static Bitmap restore(File dir) {
+        Bitmap bmp = null;
+        int generation = findLatestGeneration(dir);
+        File base = getBaseFile(dir, generation);
+        if (base.exists()) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            bmp = BitmapFactory.decodeFile(base.getPath(), opts);
+            if (bmp != null && !bmp.isMutable()) {
+                Bitmap copy = bmp.copy(Bitmap.Config.ARGB_8888, true);
+                bmp.recycle();
+                bmp = copy;
+            }
+        }
+        File journal = new File(dir, JOURNAL_FILE);
+        if (bmp == null || !journal.exists()) {
+            return bmp;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(journal, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.nativeOrder());
+            IntBuffer ints = map.asIntBuffer();
+            // A journal of another generation was left by a compaction cut short.
+            if (ints.limit() < HEADER_INTS || ints.get(0) != MAGIC
+                    || ints.get(1) != generation) {
+                return bmp;
+            }
+            int width = ints.get(2);
+            int height = ints.get(3);
+            int tileSize = ints.get(4);
+            if (bmp.getWidth() != width || bmp.getHeight() != height || tileSize <= 0) {
+                return bmp;
+            }
+            int[] data = new int[0];
+            int pos = HEADER_INTS;
+            while (pos + RECORD_HEADER_INTS <= ints.limit()) {
+                int length = ints.get(pos);
+                if (length < RECORD_HEADER_INTS || length > ints.limit() - pos) {
+                    break;
+                }
+                int col = ints.get(pos + 1);
+                int row = ints.get(pos + 2);
+                int w = ints.get(pos + 3);
+                int h = ints.get(pos + 4);
+                // A corrupt record ends the journal like a record cut short.
+                if (!isValidRecord(length, col, row, w, h, tileSize, width, height)) {
+                    break;
+                }
+                if (data.length < w * h) {
+                    data = new int[w * h];
+                }
+                ints.position(pos + RECORD_HEADER_INTS);
+                ints.get(data, 0, w * h);
+                bmp.setPixels(data, 0, w, col * tileSize, row * tileSize, w, h);
+                pos += length;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the journal.", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+        return bmp;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static boolean isValidRecord(int length, int col, int row, int w, int h,
+            int tileSize, int width, int height) {
+        if (col < 0 || row < 0 || w <= 0 || h <= 0 || w > tileSize || h > tileSize) {
+            return false;
+        }
+        return ((long) col * tileSize + w <= width && (long) row * tileSize + h <= height
+                && length == RECORD_HEADER_INTS + w * h);
+    }
+
+    /**
+     * Returns the highest generation of the base images in the directory,
+     * or 0 if there is none.
+     */
+    private static int findLatestGeneration(File dir) {
+        int latest = 0;
+        String[] names = dir.list();
+        if (names == null) {
+            return latest;
+        }
+        for (String name : names) {
+            if (name.startsWith(BASE_PREFIX) && name.endsWith(BASE_SUFFIX)) {
+                try {
+                    int generation = Integer.parseInt(name.substring(
+                            BASE_PREFIX.length(), name.length() - BASE_SUFFIX.length()));
+                    latest = Math.max(latest, generation);
+                } catch (NumberFormatException e) {
+                    // Not a base image.
+                }
+            }
+        }
+        return latest;
+    }
+
+    private static File getBaseFile(File dir, int generation) {
+        return new File(dir, BASE_PREFIX + generation + BASE_SUFFIX);
+    }
+
+    private void markTile(int tile) {
+        if (!mDirtyTiles[tile]) {
+            mDirtyTiles[tile] = true;
+            mDirtyCount++;
+        }
+    }
+
+    private int[] copyTile(int[] pixels, int tile) {
+        int col = tile % mCols;
+        int row = tile / mCols;
+        int x = col << mTileShift;
+        int y = row << mTileShift;
+        int w = Math.min(mTileSize, mWidth - x);
+        int h = Math.min(mTileSize, mHeight - y);
+        int[] record = new int[RECORD_HEADER_INTS + w * h];
+        record[0] = record.length;
+        record[1] = col;
+        record[2] = row;
+        record[3] = w;
+        record[4] = h;
+        for (int i = 0; i < h; i++) {
+            System.arraycopy(pixels, (y + i) * mWidth + x, record, RECORD_HEADER_INTS + i * w, w);
+        }
+        return record;
+    }
+
+    private void writeBase(int[] pixels, int generation) throws IOException {
+        Bitmap bmp = Bitmap.createBitmap(pixels, mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        File temp = new File(mDir, BASE_TEMP_FILE);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+            bmp.recycle();
+        }
+        /* If the process dies before the journal is reset, the journal still
+         * has the previous generation and is not replayed over this base. */
+        if (!temp.renameTo(getBaseFile(mDir, generation))) {
+            throw new IOException("Failed to rename " + temp);
+        }
+    }
+
+    private void resetJournal() throws IOException {
+        if (mFile == null) {
+            mFile = new RandomAccessFile(new File(mDir, JOURNAL_FILE), "rw");
+            mapJournal(MAP_GROW_BYTES);
+        }
+        // The old records are cut off before the header is given the new generation.
+        mInts.put(HEADER_INTS, 0);
+        mMap.force();
+        mInts.put(0, MAGIC);
+        mInts.put(1, mGeneration);
+        mInts.put(2, mWidth);
+        mInts.put(3, mHeight);
+        mInts.put(4, mTileSize);
+        mMap.force();
+        mPosition = HEADER_INTS;
+    }
+
+    private void deleteOldBases() {
+        for (int generation = mGeneration - 1; generation >= 0; generation--) {
+            File base = getBaseFile(mDir, generation);
+            if (!base.exists()) {
+                break;
+            }
+            base.delete();
+        }
+    }
+
+    private void appendRecord(int[] record) throws IOException {
+        if (mInts == null) {
+            return;
+        }
+        int end = mPosition + record.length;
+        if (end + 1 > mInts.limit()) {
+            mapJournal(Math.max((end + 1) * 4, mInts.limit() * 4 + MAP_GROW_BYTES));
+        }
+        // The length is written last, so that a record cut short is never replayed.
+        mInts.position(mPosition + 1);
+        mInts.put(record, 1, record.length - 1);
+        mInts.put(end, 0);
+        mInts.put(mPosition, record.length);
+        mPosition = end;
+    }
+
+    private void mapJournal(int bytes) throws IOException {
+        mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        mMap.order(ByteOrder.nativeOrder());
+        mInts = mMap.asIntBuffer();
+    }
+
+    private void closeFile() {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mMap.force();
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the journal.", e);
+        }
+        mFile = null;
+        mMap = null;
+        mInts = null;
+    }
+
+}
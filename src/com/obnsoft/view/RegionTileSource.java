@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+
+/**
+ * Tile source for {@link MagnifyView} which decodes fixed-size tiles of an
+ * image file on demand. Tiles are decoded on a worker thread, the newest
+ * request first, and getTile() returns null until the tile is ready. Requests
+ * of tiles which went out of view are dropped. Decoded tiles are kept in an
+ * LRU cache bounded by a byte budget, which is raised to hold at least the
+ * tiles of one screen. Must be created and used on the UI thread.
+ * Requires API level 10.
+ */
+public class RegionTileSource implements MagnifyView.AsyncTileSource {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private int     mTileSize;
+    private int     mWidth;
+    private int     mHeight;
+    private boolean mIsRecycled;
+    private Rect    mWorkRect = new Rect();
+
+    private BitmapRegionDecoder mDecoder;
+    private BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private TileCache mCache;
+    private MagnifyView.OnTileLoadedListener mListener;
+
+    /* Tiles requested but not started, newest last, and tiles being decoded
+     * or delivered. Both are guarded by mLock. */
+    private final Object mLock = new Object();
+    private KeyList mQueue = new KeyList();
+    private KeyList mStarted = new KeyList();
+
+    /* Used only on the worker thread. */
+    private Rect    mDecodeRect = new Rect();
+
+    private Handler mHandler = new Handler();
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            decodeNext();
+        }
+    };
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Small list of tile keys, searched linearly since it holds about one
+     * screen of tiles at most.
+     */
+    private static class KeyList {
+
+        long[]  mKeys = new long[16];
+        int     mSize;
+
+        boolean contains(long key) {
+            for (int i = 0; i < mSize; i++) {
+                if (mKeys[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long key) {
+            if (mSize == mKeys.length) {
+                long[] keys = new long[mSize * 2];
+                System.arraycopy(mKeys, 0, keys, 0, mSize);
+                mKeys = keys;
+            }
+            mKeys[mSize++] = key;
+        }
+
+        boolean remove(long key) {
+            for (int i = 0; i < mSize; i++) {
+                if (mKeys[i] == key) {
+                    System.arraycopy(mKeys, i + 1, mKeys, i, --mSize - i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long removeLast() {
+            return mKeys[--mSize];
+        }
+
+        /**
+         * Removes the keys out of an inclusive range of tiles.
+         */
+        void retain(int colStart, int rowStart, int colEnd, int rowEnd) {
+            int n = 0;
+            for (int i = 0; i < mSize; i++) {
+                long key = mKeys[i];
+                int col = getCol(key);
+                int row = getRow(key);
+                if (col >= colStart && col <= colEnd && row >= rowStart && row <= rowEnd) {
+                    mKeys[n++] = key;
+                }
+            }
+            mSize = n;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public RegionTileSource(String path, int maxBytes) throws IOException {
+        this(path, DEFAULT_TILE_SIZE, maxBytes);
+    }
+
+    /**
+     * @param maxBytes the budget of decoded tiles, which is raised as needed
+     *                 to hold the tiles of one screen.
+     */
+    public RegionTileSource(String path, int tileSize, int maxBytes) throws IOException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+        mDecoder = BitmapRegionDecoder.newInstance(path, false);
+        mWidth = mDecoder.getWidth();
+        mHeight = mDecoder.getHeight();
+        mTileSize = tileSize;
+        mCache = new TileCache(maxBytes);
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public Bitmap getTile(int col, int row) {
+        if (mIsRecycled) {
+            return null;
+        }
+        long key = ((long) row << 32) | (col & 0xFFFFFFFFL);
+        Bitmap tile = mCache.get(key);
+        if (tile == null) {
+            int x = col * mTileSize;
+            int y = row * mTileSize;
+            mWorkRect.set(x, y, x + mTileSize, y + mTileSize);
+            if (mWorkRect.intersect(0, 0, mWidth, mHeight)) {
+                requestTile(key);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Drops the requests of tiles which went out of the range, and raises
+     * the budget if it cannot hold the tiles of the range.
+     */
+    @Override
+    public void setVisibleTiles(int colStart, int rowStart, int colEnd, int rowEnd) {
+        synchronized (mLock) {
+            mQueue.retain(colStart, rowStart, colEnd, rowEnd);
+        }
+        int bytes = (colEnd - colStart + 1) * (rowEnd - rowStart + 1) * mTileSize * mTileSize * 4;
+        if (bytes > mCache.getMaxBytes()) {
+            mCache.setMaxBytes(bytes);
+        }
+    }
+
+    @Override
+    public void setOnTileLoadedListener(MagnifyView.OnTileLoadedListener listener) {
+        mListener = listener;
+    }
+
+    public int getCacheBytes() {
+        return mCache.getByteCount();
+    }
+
+    public void clearCache() {
+        mCache.clear();
+    }
+
+    /**
+     * Releases the tiles. The decoder is released on the worker thread after
+     * the decoding in progress, if any.
+     */
+    public void recycle() {
+        if (mIsRecycled) {
+            return;
+        }
+        mIsRecycled = true;
+        clearCache();
+        synchronized (mLock) {
+            mQueue.mSize = 0;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.recycle();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static int getCol(long key) {
+        return (int) key;
+    }
+
+    private static int getRow(long key) {
+        return (int) (key >> 32);
+    }
+
+    private void requestTile(long key) {
+        synchronized (mLock) {
+            if (mQueue.contains(key) || mStarted.contains(key)) {
+                return;
+            }
+            mQueue.add(key);
+        }
+        mExecutor.execute(mDecodeRunnable);
+    }
+
+    /* Called on the worker thread, once for each request. */
+    private void decodeNext() {
+        final long key;
+        synchronized (mLock) {
+            // The newest request first; dropped requests leave nothing to do.
+            if (mQueue.mSize == 0) {
+                return;
+            }
+            key = mQueue.removeLast();
+            mStarted.add(key);
+        }
+        int x = getCol(key) * mTileSize;
+        int y = getRow(key) * mTileSize;
+        mDecodeRect.set(x, y, Math.min(x + mTileSize, mWidth), Math.min(y + mTileSize, mHeight));
+        final Bitmap tile = mDecoder.decodeRegion(mDecodeRect, mOptions);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onTileDecoded(key, tile);
+            }
+        });
+    }
+
+    private void onTileDecoded(long key, Bitmap tile) {
+        synchronized (mLock) {
+            mStarted.remove(key);
+        }
+        if (tile == null) {
+            return;
+        }
+        if (mIsRecycled) {
+            tile.recycle();
+            return;
+        }
+        mCache.put(key, tile);
+        if (mListener != null) {
+            mListener.onTileLoaded(this, getCol(key), getRow(key));
+        }
+    }
+
+}
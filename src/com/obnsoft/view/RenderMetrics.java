@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.Arrays;
+
+/**
+ * Opt-in per-frame measurements of {@link MagnifyView}. The last frames are
+ * kept in a fixed ring, so recording a frame only stores a few numbers;
+ * summaries are computed when a {@link Snapshot} is taken.
+ */
+public class RenderMetrics {
+
+    public static final int DRAW_TIME_NANOS     = 0;
+    public static final int GRID_PRIMITIVES     = 1;
+    public static final int CLIP_AREA           = 2;
+    public static final int INVALIDATE_COUNT    = 3;
+    public static final int TOUCH_LATENCY_MILLIS = 4;
+    public static final int METRIC_COUNT        = 5;
+
+    public static final int BUCKET_COUNT = 64;
+
+    private long[][] mRing;
+    private int     mWindowSize;
+    private int     mNext;
+    private int     mCount;
+    private long    mTotalFrames;
+    private long[]  mFrame = new long[METRIC_COUNT];
+
+    private OnFrameListener mListener;
+
+    /*-----------------------------------------------------------------------*/
+
+    public interface OnFrameListener {
+        /**
+         * Called on the UI thread after each frame. The values are indexed by the
+         * metric constants and the array is reused. A missing touch latency is -1.
+         */
+        public void onFrame(RenderMetrics metrics, long[] values);
+    }
+
+    /**
+     * Summary of the frames in the window when it was taken.
+     */
+    public static class Snapshot {
+
+        private long[][] mValues;
+        private long    mTotalFrames;
+
+        Snapshot(long[][] values, long totalFrames) {
+            mValues = values;
+            mTotalFrames = totalFrames;
+        }
+
+        public int getFrameCount() {
+            return mValues[0].length;
+        }
+
+        public long getTotalFrames() {
+            return mTotalFrames;
+        }
+
+        /**
+         * Returns the count of frames whose value v satisfies
+         * 2^(i-1) <= v < 2^i at index i, and v <= 0 at index 0.
+         */
+        public int[] getHistogram(int metric) {
+            int[] buckets = new int[BUCKET_COUNT];
+            for (long v : mValues[metric]) {
+                buckets[(v <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(v)]++;
+            }
+            return buckets;
+        }
+
+        /**
+         * Returns the value below which the percent of frames falls.
+         * Frames without the value, such as those without touch, are skipped.
+         */
+        public long getPercentile(int metric, float percent) {
+            long[] sorted = mValues[metric];
+            int start = 0;
+            while (start < sorted.length && sorted[start] < 0) {
+                start++;
+            }
+            if (start == sorted.length) {
+                return -1;
+            }
+            int index = start + (int) ((sorted.length - start - 1) * percent / 100f);
+            return sorted[index];
+        }
+
+        public long getMax(int metric) {
+            long[] sorted = mValues[metric];
+            return (sorted.length == 0) ? -1 : sorted[sorted.length - 1];
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public RenderMetrics(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mWindowSize = windowSize;
+        mRing = new long[METRIC_COUNT][windowSize];
+    }
+
+    public void setOnFrameListener(OnFrameListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        long[][] values = new long[METRIC_COUNT][];
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            values[i] = new long[mCount];
+            // The oldest frame comes first, though the order is lost by sorting anyway.
+            int start = (mNext - mCount + mWindowSize) % mWindowSize;
+            for (int j = 0; j < mCount; j++) {
+                values[i][j] = mRing[i][(start + j) % mWindowSize];
+            }
+            Arrays.sort(values[i]);
+        }
+        return new Snapshot(values, mTotalFrames);
+    }
+
+    public synchronized void reset() {
+        mNext = mCount = 0;
+        mTotalFrames = 0;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    void recordFrame(long drawTimeNanos, int gridPrimitives, int clipArea,
+            int invalidateCount, long touchLatencyMillis) {
+        long[] frame = mFrame;
+        frame[DRAW_TIME_NANOS] = drawTimeNanos;
+        frame[GRID_PRIMITIVES] = gridPrimitives;
+        frame[CLIP_AREA] = clipArea;
+        frame[INVALIDATE_COUNT] = invalidateCount;
+        frame[TOUCH_LATENCY_MILLIS] = touchLatencyMillis;
+        synchronized (this) {
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                mRing[i][mNext] = frame[i];
+            }
+            mNext = (mNext + 1) % mWindowSize;
+            if (mCount < mWindowSize) {
+                mCount++;
+            }
+            mTotalFrames++;
+        }
+        if (mListener != null) {
+            mListener.onFrame(this, frame);
+        }
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Rectangular selection with a clipboard over a {@link PixelBuffer}. Pixels are
+ * moved a row at a time with System.arraycopy. Pasted or lifted pixels float
+ * over the buffer, drawn by {@link MagnifyView} as an overlay, and are blended
+ * into the buffer the same way only when committed. Coordinates are those of the buffer,
+ * and rectangles are exclusive.
+ */
+public class Selection {
+
+    private Rect    mBounds = new Rect();
+    private Rect    mWorkRect = new Rect();
+
+    private int[]   mClip;
+    private int     mClipWidth;
+    private int     mClipHeight;
+
+    private boolean mIsFloating;
+    private int[]   mFloat = new int[0];
+    private Bitmap  mFloatBitmap;
+    private int[]   mRow = new int[0];
+
+    private MagnifyView mView;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Shows the selection and the floating pixels in the view.
+     */
+    public void setMagnifyView(MagnifyView view) {
+        if (mView != null) {
+            mView.setOverlay(null, 0, 0);
+            mView.setSelectionRect(null);
+        }
+        mView = view;
+        updateView();
+    }
+
+    /**
+     * Selects an area. Any floating pixels must be committed or canceled first.
+     */
+    public void select(Rect rect) {
+        checkNotFloating();
+        mBounds.set(rect);
+        mBounds.sort();
+        updateView();
+    }
+
+    public void clear() {
+        checkNotFloating();
+        mBounds.setEmpty();
+        updateView();
+    }
+
+    public void getBounds(Rect outRect) {
+        outRect.set(mBounds);
+    }
+
+    public boolean isEmpty() {
+        return mBounds.isEmpty();
+    }
+
+    public boolean isFloating() {
+        return mIsFloating;
+    }
+
+    public boolean hasClip() {
+        return (mClip != null);
+    }
+
+    /**
+     * Copies the selected pixels, or the floating ones, to the clipboard.
+     */
+    public void copy(PixelBuffer buffer) {
+        if (!clipBounds(buffer)) {
+            return;
+        }
+        int w = mWorkRect.width();
+        int h = mWorkRect.height();
+        if (mClip == null || mClip.length < w * h) {
+            mClip = new int[w * h];
+        }
+        if (mIsFloating) {
+            System.arraycopy(mFloat, 0, mClip, 0, w * h);
+        } else {
+            buffer.getPixels(mClip, 0, w, mWorkRect.left, mWorkRect.top, w, h);
+        }
+        mClipWidth = w;
+        mClipHeight = h;
+    }
+
+    /**
+     * Copies to the clipboard, then fills the selected area with the color or
+     * drops the floating pixels.
+     */
+    public void cut(PixelBuffer buffer, int fillColor) {
+        copy(buffer);
+        if (mIsFloating) {
+            cancel();
+        } else if (clipBounds(buffer)) {
+            buffer.fillRect(mWorkRect.left, mWorkRect.top,
+                    mWorkRect.right - 1, mWorkRect.bottom - 1, fillColor);
+        }
+    }
+
+    /**
+     * Floats the clipboard at the position, committing floating pixels first.
+     */
+    public void paste(PixelBuffer buffer, int x, int y) {
+        if (mClip == null) {
+            return;
+        }
+        commit(buffer);
+        mBounds.set(x, y, x + mClipWidth, y + mClipHeight);
+        startFloating(mClip);
+    }
+
+    /**
+     * Floats the selected pixels so that they can be moved, leaving the color
+     * behind.
+     */
+    public void lift(PixelBuffer buffer, int fillColor) {
+        if (mIsFloating || !clipBounds(buffer)) {
+            return;
+        }
+        mBounds.set(mWorkRect);
+        int w = mBounds.width();
+        int h = mBounds.height();
+        if (mFloat.length < w * h) {
+            mFloat = new int[w * h];
+        }
+        buffer.getPixels(mFloat, 0, w, mBounds.left, mBounds.top, w, h);
+        buffer.fillRect(mBounds.left, mBounds.top, mBounds.right - 1, mBounds.bottom - 1,
+                fillColor);
+        startFloating(mFloat);
+    }
+
+    /**
+     * Moves the floating pixels, or the selected area if nothing floats.
+     */
+    public void offset(int dx, int dy) {
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+        mBounds.offset(dx, dy);
+        updateView();
+    }
+
+    public void flipHorizontal(PixelBuffer buffer) {
+        flip(buffer, true);
+    }
+
+    public void flipVertical(PixelBuffer buffer) {
+        flip(buffer, false);
+    }
+
+    /**
+     * Blends the floating pixels over the buffer as they are shown, so that
+     * translucent ones keep what is under them. The area stays selected.
+     */
+    public void commit(PixelBuffer buffer) {
+        if (!mIsFloating) {
+            return;
+        }
+        int w = mBounds.width();
+        mWorkRect.set(mBounds);
+        if (mWorkRect.intersect(0, 0, buffer.getWidth(), buffer.getHeight())) {
+            int[] pixels = buffer.getPixels();
+            int stride = buffer.getWidth();
+            for (int y = mWorkRect.top; y < mWorkRect.bottom; y++) {
+                int i = (y - mBounds.top) * w - mBounds.left;
+                for (int x = mWorkRect.left; x < mWorkRect.right; x++) {
+                    mFloat[i + x] = LayerStack.blend(mFloat[i + x], pixels[y * stride + x]);
+                }
+            }
+        }
+        buffer.setPixels(mFloat, 0, w, mBounds.left, mBounds.top, w, mBounds.height());
+        mIsFloating = false;
+        updateView();
+    }
+
+    /**
+     * Drops the floating pixels without writing them.
+     */
+    public void cancel() {
+        mIsFloating = false;
+        updateView();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void checkNotFloating() {
+        if (mIsFloating) {
+            throw new IllegalStateException("Selection is floating");
+        }
+    }
+
+    /**
+     * Puts the area to be read into mWorkRect: the floating area as it is,
+     * or the selected area clipped to the buffer.
+     */
+    private boolean clipBounds(PixelBuffer buffer) {
+        mWorkRect.set(mBounds);
+        if (mIsFloating) {
+            return !mWorkRect.isEmpty();
+        }
+        return mWorkRect.intersect(0, 0, buffer.getWidth(), buffer.getHeight());
+    }
+
+    private void startFloating(int[] pixels) {
+        int w = mBounds.width();
+        int h = mBounds.height();
+        if (pixels != mFloat) {
+            if (mFloat.length < w * h) {
+                mFloat = new int[w * h];
+            }
+            System.arraycopy(pixels, 0, mFloat, 0, w * h);
+        }
+        mIsFloating = true;
+        updateFloatBitmap();
+        updateView();
+    }
+
+    private void flip(PixelBuffer buffer, boolean horizontal) {
+        int w, h;
+        int[] pixels;
+        if (mIsFloating) {
+            w = mBounds.width();
+            h = mBounds.height();
+            pixels = mFloat;
+        } else {
+            if (!clipBounds(buffer)) {
+                return;
+            }
+            w = mWorkRect.width();
+            h = mWorkRect.height();
+            if (mFloat.length < w * h) {
+                mFloat = new int[w * h];
+            }
+            pixels = mFloat;
+            buffer.getPixels(pixels, 0, w, mWorkRect.left, mWorkRect.top, w, h);
+        }
+        if (horizontal) {
+            for (int y = 0; y < h; y++) {
+                for (int i = y * w, j = i + w - 1; i < j; i++, j--) {
+                    int c = pixels[i];
+                    pixels[i] = pixels[j];
+                    pixels[j] = c;
+                }
+            }
+        } else {
+            if (mRow.length < w) {
+                mRow = new int[w];
+            }
+            for (int i = 0, j = h - 1; i < j; i++, j--) {
+                System.arraycopy(pixels, i * w, mRow, 0, w);
+                System.arraycopy(pixels, j * w, pixels, i * w, w);
+                System.arraycopy(mRow, 0, pixels, j * w, w);
+            }
+        }
+        if (mIsFloating) {
+            updateFloatBitmap();
+            updateView();
+        } else {
+            buffer.setPixels(pixels, 0, w, mWorkRect.left, mWorkRect.top, w, h);
+        }
+    }
+
+    private void updateFloatBitmap() {
+        int w = mBounds.width();
+        int h = mBounds.height();
+        if (mFloatBitmap == null || mFloatBitmap.getWidth() != w
+                || mFloatBitmap.getHeight() != h) {
+            if (mFloatBitmap != null) {
+                mFloatBitmap.recycle();
+            }
+            mFloatBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        }
+        mFloatBitmap.setPixels(mFloat, 0, w, 0, 0, w, h);
+    }
+
+    private void updateView() {
+        if (mView == null) {
+            return;
+        }
+        mView.getSourceRect(mWorkRect);
+        int ox = mWorkRect.left;
+        int oy = mWorkRect.top;
+        if (mIsFloating) {
+            mView.setOverlay(mFloatBitmap, mBounds.left - ox, mBounds.top - oy);
+        } else {
+            mView.setOverlay(null, 0, 0);
+        }
+        mWorkRect.set(mBounds);
+        mWorkRect.offset(-ox, -oy);
+        mView.setSelectionRect(mWorkRect);
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Fling with the spline deceleration of Android's OverScroller. The spline
+ * is sampled into tables once, so each frame costs a lookup and a linear
+ * interpolation per axis. Each axis has its own friction, and a fling hitting
+ * a bound stops there at the time the spline reaches it.
+ */
+public class SplineFlingEngine implements FlingEngine {
+
+    public static final float DEFAULT_FRICTION = 0.015f;
+
+    private static final float GRAVITY_EARTH = 9.80665f;    // m/s^2
+    private static final float INCHES_PER_METER = 39.37f;
+    private static final float DECELERATION_RATE = (float) (Math.log(0.78) / Math.log(0.9));
+    private static final float INFLEXION = 0.35f;
+    private static final float START_TENSION = 0.5f;
+    private static final float END_TENSION = 1.0f;
+    private static final float P1 = START_TENSION * INFLEXION;
+    private static final float P2 = 1.0f - END_TENSION * (1.0f - INFLEXION);
+
+    private static final int NB_SAMPLES = 100;
+    private static final float[] SPLINE_POSITION = new float[NB_SAMPLES + 1];
+    private static final float[] SPLINE_TIME = new float[NB_SAMPLES + 1];
+
+    static {
+        float xMin = 0.0f;
+        float yMin = 0.0f;
+        for (int i = 0; i < NB_SAMPLES; i++) {
+            final float alpha = (float) i / NB_SAMPLES;
+
+            float xMax = 1.0f;
+            float x, tx, coef;
+            while (true) {
+                x = xMin + (xMax - xMin) / 2.0f;
+                coef = 3.0f * x * (1.0f - x);
+                tx = coef * ((1.0f - x) * P1 + x * P2) + x * x * x;
+                if (Math.abs(tx - alpha) < 1E-5) break;
+                if (tx > alpha) xMax = x;
+                else xMin = x;
+            }
+            SPLINE_POSITION[i] = coef * ((1.0f - x) * START_TENSION + x) + x * x * x;
+
+            float yMax = 1.0f;
+            float y, dy;
+            while (true) {
+                y = yMin + (yMax - yMin) / 2.0f;
+                coef = 3.0f * y * (1.0f - y);
+                dy = coef * ((1.0f - y) * START_TENSION + y) + y * y * y;
+                if (Math.abs(dy - alpha) < 1E-5) break;
+                if (dy > alpha) yMax = y;
+                else yMin = y;
+            }
+            SPLINE_TIME[i] = coef * ((1.0f - y) * P1 + y * P2) + y * y * y;
+        }
+        SPLINE_POSITION[NB_SAMPLES] = SPLINE_TIME[NB_SAMPLES] = 1.0f;
+    }
+
+    /* The slope of the spline at its start, in distance per duration. */
+    private static final float START_SLOPE = SPLINE_POSITION[1] * NB_SAMPLES;
+
+    private Axis    mAxisX;
+    private Axis    mAxisY;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * One axis of a fling, which runs along the spline scaled to its distance
+     * and duration.
+     */
+    private static class Axis {
+
+        float   mFriction = DEFAULT_FRICTION;
+        float   mPhysicalCoeff;
+
+        int     mMin = Integer.MIN_VALUE;
+        int     mMax = Integer.MAX_VALUE;
+        int     mStart;
+        int     mCurr;
+        int     mFinal;
+        float   mCurrVelocity;
+        long    mStartTime;
+        /* Time until the position stops, which may be before the spline ends. */
+        int     mDuration;
+        int     mSplineDuration;
+        float   mSplineDistance;
+        boolean mIsFinished = true;
+
+        Axis(float ppi) {
+            mPhysicalCoeff = GRAVITY_EARTH * INCHES_PER_METER * ppi * 0.84f;
+        }
+
+        void fling(int start, int velocity, int min, int max, long time) {
+            mMin = min;
+            mMax = max;
+            mStart = mCurr = mFinal = start;
+            mStartTime = time;
+            mCurrVelocity = velocity;
+            mIsFinished = true;
+            if (start < min || start > max) {
+                retarget(start, time);
+                return;
+            }
+            if (velocity == 0) {
+                mCurrVelocity = 0;
+                return;
+            }
+            final double l = getSplineDeceleration(velocity);
+            mSplineDuration = mDuration = (int) (1000.0 * Math.exp(l / (DECELERATION_RATE - 1.0)));
+            mSplineDistance = (float) (mFriction * mPhysicalCoeff
+                    * Math.exp(DECELERATION_RATE / (DECELERATION_RATE - 1.0) * l))
+                    * Math.signum(velocity);
+            mFinal = start + Math.round(mSplineDistance);
+            if (mFinal < min) {
+                adjustDuration(min - start);
+                mFinal = min;
+            } else if (mFinal > max) {
+                adjustDuration(max - start);
+                mFinal = max;
+            }
+            mIsFinished = (mDuration <= 0 || mFinal == start);
+            if (mIsFinished) {
+                mFinal = mCurr = start;
+                mCurrVelocity = 0;
+            }
+        }
+
+        /**
+         * Runs a new spline from the current position to the target. Its
+         * duration keeps the velocity continuous when the direction allows,
+         * and is kept within twice that of a fling of the same distance.
+         */
+        void retarget(int target, long time) {
+            target = Math.max(mMin, Math.min(target, mMax));
+            final int distance = target - mCurr;
+            final float velocity = mIsFinished ? 0f : mCurrVelocity;
+            mStart = mCurr;
+            mFinal = target;
+            mStartTime = time;
+            if (distance == 0) {
+                mIsFinished = true;
+                mCurrVelocity = 0;
+                return;
+            }
+            final double l = Math.log(Math.abs(distance) / (mFriction * mPhysicalCoeff))
+                    * (DECELERATION_RATE - 1.0) / DECELERATION_RATE;
+            final int natural = Math.max((int) (1000.0 * Math.exp(l / (DECELERATION_RATE - 1.0))), 1);
+            int duration = natural;
+            if (velocity * distance > 0) {
+                duration = (int) (1000f * Math.abs(distance) * START_SLOPE / Math.abs(velocity));
+                duration = Math.max(natural / 2, Math.min(duration, natural * 2));
+            }
+            mSplineDuration = mDuration = Math.max(duration, 1);
+            mSplineDistance = distance;
+            mIsFinished = false;
+        }
+
+        void update(long time) {
+            final long elapsed = time - mStartTime;
+            if (elapsed >= mDuration) {
+                mCurr = mFinal;
+                mCurrVelocity = 0;
+                mIsFinished = true;
+                return;
+            }
+            final float t = (float) elapsed / mSplineDuration;
+            final int index = (int) (NB_SAMPLES * t);
+            float distanceCoef = 1.0f;
+            float velocityCoef = 0.0f;
+            if (index < NB_SAMPLES) {
+                final float tInf = (float) index / NB_SAMPLES;
+                final float dInf = SPLINE_POSITION[index];
+                final float dSup = SPLINE_POSITION[index + 1];
+                velocityCoef = (dSup - dInf) * NB_SAMPLES;
+                distanceCoef = dInf + (t - tInf) * velocityCoef;
+            }
+            mCurr = mStart + Math.round(distanceCoef * mSplineDistance);
+            mCurrVelocity = velocityCoef * mSplineDistance / mSplineDuration * 1000.0f;
+        }
+
+        void abort() {
+            mFinal = mCurr;
+            mCurrVelocity = 0;
+            mIsFinished = true;
+        }
+
+        /**
+         * Shortens the duration to when the spline has run the distance.
+         */
+        private void adjustDuration(int distance) {
+            final float x = Math.abs(distance / mSplineDistance);
+            final int index = (int) (NB_SAMPLES * x);
+            if (index < NB_SAMPLES) {
+                final float xInf = (float) index / NB_SAMPLES;
+                final float tInf = SPLINE_TIME[index];
+                final float tSup = SPLINE_TIME[index + 1];
+                final float timeCoef = tInf + (x - xInf) * NB_SAMPLES * (tSup - tInf);
+                mDuration = (int) (mDuration * timeCoef);
+            }
+        }
+
+        private double getSplineDeceleration(int velocity) {
+            return Math.log(INFLEXION * Math.abs(velocity) / (mFriction * mPhysicalCoeff));
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @param ppi pixels per inch of the screen, which is 160 times the density.
+     */
+    public SplineFlingEngine(float ppi) {
+        mAxisX = new Axis(ppi);
+        mAxisY = new Axis(ppi);
+    }
+
+    /**
+     * Sets the friction of each axis for the next fling. Higher values stop
+     * sooner.
+     */
+    public void setFriction(float frictionX, float frictionY) {
+        mAxisX.mFriction = frictionX;
+        mAxisY.mFriction = frictionY;
+    }
+
+    @Override
+    public void fling(int startX, int startY, int velocityX, int velocityY,
+            int minX, int maxX, int minY, int maxY, long time) {
+        mAxisX.fling(startX, velocityX, minX, maxX, time);
+        mAxisY.fling(startY, velocityY, minY, maxY, time);
+    }
+
+    @Override
+    public void retarget(int finalX, int finalY, long time) {
+        if (!isFinished()) {
+            computeOffset(time);
+        }
+        mAxisX.retarget(finalX, time);
+        mAxisY.retarget(finalY, time);
+    }
+
+    @Override
+    public boolean computeOffset(long time) {
+        if (isFinished()) {
+            return false;
+        }
+        if (!mAxisX.mIsFinished) {
+            mAxisX.update(time);
+        }
+        if (!mAxisY.mIsFinished) {
+            mAxisY.update(time);
+        }
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        mAxisX.abort();
+        mAxisY.abort();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return (mAxisX.mIsFinished && mAxisY.mIsFinished);
+    }
+
+    @Override
+    public int getCurrX() {
+        return mAxisX.mCurr;
+    }
+
+    @Override
+    public int getCurrY() {
+        return mAxisY.mCurr;
+    }
+
+    @Override
+    public int getFinalX() {
+        return mAxisX.mFinal;
+    }
+
+    @Override
+    public int getFinalY() {
+        return mAxisY.mFinal;
+    }
+
+    @Override
+    public float getCurrVelocityX() {
+        return mAxisX.mCurrVelocity;
+    }
+
+    @Override
+    public float getCurrVelocityY() {
+        return mAxisY.mCurrVelocity;
+    }
+
+}
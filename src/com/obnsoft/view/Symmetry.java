@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import android.graphics.Rect;
+
+/**
+ * Mirrors cells written on the unit grid. A batch of cells is written with
+ * all its mirrored cells at once, and the dirty area is marked once per
+ * mirror image rather than once per cell.
+ */
+public class Symmetry {
+
+    public static final int NONE        = 0;
+    public static final int HORIZONTAL  = 1;
+    public static final int VERTICAL    = 2;
+    public static final int ROTATE_4    = 3;
+    public static final int ROTATE_8    = 4;
+
+    private static final int MAX_IMAGES = 8;
+
+    private int     mMode;
+    private boolean mHasCenter;
+    private float   mCenterX;
+    private float   mCenterY;
+
+    /* Bounds of the cells written by each transform, as {l, t, r, b}. */
+    private int[]   mImageBounds = new int[MAX_IMAGES * 4];
+    private int[]   mCells = new int[MAX_IMAGES * 2];
+
+    /*-----------------------------------------------------------------------*/
+
+    public Symmetry(int mode) {
+        setMode(mode);
+    }
+
+    public void setMode(int mode) {
+        if (mode < NONE || mode > ROTATE_8) {
+            throw new IllegalArgumentException("Unknown mode");
+        }
+        mMode = mode;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Sets the center in units. A center on a grid line, such as 8.0, mirrors
+     * between cells, and one in the middle of a cell, such as 8.5, mirrors
+     * around that cell. By default the center of the area is used.
+     */
+    public void setCenter(float unitX, float unitY) {
+        mCenterX = unitX;
+        mCenterY = unitY;
+        mHasCenter = true;
+    }
+
+    public void clearCenter() {
+        mHasCenter = false;
+    }
+
+    public int getImageCount() {
+        switch (mMode) {
+        case HORIZONTAL:
+        case VERTICAL:
+            return 2;
+        case ROTATE_4:
+            return 4;
+        case ROTATE_8:
+            return 8;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Maps a cell into its mirrored cells, including itself, stored in pairs
+     * into outCoords. Cells are given in units of an area of the size.
+     *
+     * @return the number of cells, which may have duplicates on the axes.
+     */
+    public int map(int x, int y, int width, int height, int[] outCoords) {
+        // Work in doubled coordinates so that centers on half units stay exact.
+        int a2 = Math.round((mHasCenter ? mCenterX : width / 2f) * 2f);
+        int b2 = Math.round((mHasCenter ? mCenterY : height / 2f) * 2f);
+        int dx = x * 2 + 1 - a2;
+        int dy = y * 2 + 1 - b2;
+        int n = 0;
+        n = put(outCoords, n, a2 + dx, b2 + dy);
+        switch (mMode) {
+        case HORIZONTAL:
+            n = put(outCoords, n, a2 - dx, b2 + dy);
+            break;
+        case VERTICAL:
+            n = put(outCoords, n, a2 + dx, b2 - dy);
+            break;
+        case ROTATE_4:
+        case ROTATE_8:
+            n = put(outCoords, n, a2 - dy, b2 + dx);
+            n = put(outCoords, n, a2 - dx, b2 - dy);
+            n = put(outCoords, n, a2 + dy, b2 - dx);
+            if (mMode == ROTATE_8) {
+                n = put(outCoords, n, a2 - dx, b2 + dy);
+                n = put(outCoords, n, a2 + dy, b2 + dx);
+                n = put(outCoords, n, a2 + dx, b2 - dy);
+                n = put(outCoords, n, a2 - dy, b2 - dx);
+            }
+            break;
+        }
+        return n;
+    }
+
+    /**
+     * Writes count cells whose coordinates are stored in pairs in coords,
+     * relative to bounds, together with their mirrored cells.
+     *
+     * @param bounds the area of the buffer shown as units; may be null for all.
+     * @return the number of cells written, including the mirrored ones.
+     */
+    public int plot(PixelBuffer buffer, Rect bounds, int[] coords, int count, int color) {
+        int ox = (bounds != null) ? bounds.left : 0;
+        int oy = (bounds != null) ? bounds.top : 0;
+        int w = (bounds != null) ? bounds.width() : buffer.getWidth();
+        int h = (bounds != null) ? bounds.height() : buffer.getHeight();
+        int stride = buffer.getWidth();
+        int[] ib = mImageBounds;
+        for (int i = 0; i < ib.length; i += 4) {
+            ib[i] = ib[i + 1] = Integer.MAX_VALUE;
+            ib[i + 2] = ib[i + 3] = Integer.MIN_VALUE;
+        }
+        int written = 0;
+        int[] cells = mCells;
+        for (int i = 0; i < count; i++) {
+            int n = map(coords[i * 2], coords[i * 2 + 1], w, h, cells);
+            for (int j = 0; j < n; j++) {
+                int x = cells[j * 2];
+                int y = cells[j * 2 + 1];
+                if (x < 0 || y < 0 || x >= w || y >= h) {
+                    continue;
+                }
+                buffer.put((oy + y) * stride + ox + x, color);
+                written++;
+                int k = j * 4;
+                if (x < ib[k]) ib[k] = x;
+                if (y < ib[k + 1]) ib[k + 1] = y;
+                if (x > ib[k + 2]) ib[k + 2] = x;
+                if (y > ib[k + 3]) ib[k + 3] = y;
+            }
+        }
+        for (int k = 0; k < ib.length; k += 4) {
+            if (ib[k] <= ib[k + 2]) {
+                buffer.markDirty(ox + ib[k], oy + ib[k + 1], ox + ib[k + 2], oy + ib[k + 3]);
+            }
+        }
+        return written;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static int put(int[] coords, int n, int x2, int y2) {
+        // Doubled cell centers are odd; floor them back into cells.
+        coords[n * 2] = (x2 - 1) >> 1;
+        coords[n * 2 + 1] = (y2 - 1) >> 1;
+        return n + 1;
+    }
+
+}
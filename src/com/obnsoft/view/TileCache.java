@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * LRU cache of tile bitmaps bounded by a byte budget. The most recently used
+ * tile is kept to be drawn even if it alone exceeds the budget. A tile which
+ * has to be evicted for a new one of the same size can be reused by obtain().
+ */
+public class TileCache {
+
+    private int     mMaxBytes;
+    private int     mCurBytes;
+    private LinkedHashMap<Long, Bitmap> mMap =
+            new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+
+    /*-----------------------------------------------------------------------*/
+
+    public TileCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public Bitmap get(long key) {
+        return mMap.get(Long.valueOf(key));
+    }
+
+    /**
+     * Adds a tile as the most recently used one, evicting older tiles over
+     * the budget.
+     */
+    public void put(long key, Bitmap bmp) {
+        Bitmap old = mMap.put(Long.valueOf(key), bmp);
+        if (old != null) {
+            mCurBytes -= getByteCount(old);
+            if (old != bmp) {
+                old.recycle();
+            }
+        }
+        mCurBytes += getByteCount(bmp);
+        trim(mMaxBytes);
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 bitmap for a new tile. If tiles have to be
+     * evicted to make room for it, one of the same size is reused instead of
+     * creating a bitmap.
+     */
+    public Bitmap obtain(int width, int height) {
+        int bytes = width * height * 4;
+        Bitmap reuse = null;
+        Iterator<Map.Entry<Long, Bitmap>> it = mMap.entrySet().iterator();
+        while (mCurBytes + bytes > mMaxBytes && it.hasNext()) {
+            Bitmap tile = it.next().getValue();
+            it.remove();
+            mCurBytes -= getByteCount(tile);
+            if (reuse == null && tile.getWidth() == width && tile.getHeight() == height
+                    && tile.isMutable() && tile.getConfig() == Bitmap.Config.ARGB_8888) {
+                reuse = tile;
+            } else {
+                tile.recycle();
+            }
+        }
+        if (reuse == null) {
+            reuse = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return reuse;
+    }
+
+    public int getByteCount() {
+        return mCurBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    public void trim(int maxBytes) {
+        Iterator<Map.Entry<Long, Bitmap>> it = mMap.entrySet().iterator();
+        while (mCurBytes > maxBytes && mMap.size() > ((maxBytes > 0) ? 1 : 0)) {
+            Bitmap tile = it.next().getValue();
+            it.remove();
+            mCurBytes -= getByteCount(tile);
+            tile.recycle();
+        }
+    }
+
+    public void clear() {
+        trim(0);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static int getByteCount(Bitmap bmp) {
+        return bmp.getRowBytes() * bmp.getHeight();
+    }
+
+}
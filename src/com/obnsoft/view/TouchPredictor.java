@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Extrapolates a touch stroke a few samples ahead of the last one from the
+ * speed and the turning rate of the last three samples, so that drawing can
+ * follow the finger before the real samples come. Nothing is predicted for
+ * slow or paused strokes, where a wrong guess shows the most.
+ */
+public class TouchPredictor {
+
+    public static final int MAX_PREDICTIONS = 2;
+
+    private static final long   MAX_INTERVAL = 50;      // ms
+    private static final float  MAX_STEP = 16f;         // ms
+    private static final float  MIN_SPEED = 0.05f;      // px/ms
+    private static final float  MAX_TURN = (float) (Math.PI / 6);
+
+    private long[]  mTimes = new long[3];
+    private float[] mXs = new float[3];
+    private float[] mYs = new float[3];
+    private int     mCount;
+
+    /*-----------------------------------------------------------------------*/
+
+    public void reset() {
+        mCount = 0;
+    }
+
+    /**
+     * Adds a sample, which must be in time order.
+     */
+    public void addSample(long time, float x, float y) {
+        if (mCount > 0 && time <= mTimes[mCount - 1]) {
+            // Keep the latest position of samples at the same time.
+            mXs[mCount - 1] = x;
+            mYs[mCount - 1] = y;
+            return;
+        }
+        if (mCount == mTimes.length) {
+            for (int i = 1; i < mCount; i++) {
+                mTimes[i - 1] = mTimes[i];
+                mXs[i - 1] = mXs[i];
+                mYs[i - 1] = mYs[i];
+            }
+            mCount--;
+        }
+        mTimes[mCount] = time;
+        mXs[mCount] = x;
+        mYs[mCount] = y;
+        mCount++;
+    }
+
+    /**
+     * Stores up to max predicted samples as pairs into outCoords, each one
+     * sample interval after the previous.
+     *
+     * @return the number of samples stored, which may be 0.
+     */
+    public int predict(float[] outCoords, int max) {
+        max = Math.min(max, MAX_PREDICTIONS);
+        if (mCount < 2 || max <= 0) {
+            return 0;
+        }
+        int last = mCount - 1;
+        float dt = mTimes[last] - mTimes[last - 1];
+        if (dt > MAX_INTERVAL) {
+            return 0;
+        }
+        float vx = (mXs[last] - mXs[last - 1]) / dt;
+        float vy = (mYs[last] - mYs[last - 1]) / dt;
+        float speed = (float) Math.hypot(vx, vy);
+        if (speed < MIN_SPEED) {
+            return 0;
+        }
+
+        float step = Math.min(dt, MAX_STEP);
+        float accel = 0f;
+        float turn = 0f;
+        if (mCount == 3) {
+            float dt0 = mTimes[1] - mTimes[0];
+            float vx0 = (mXs[1] - mXs[0]) / dt0;
+            float vy0 = (mYs[1] - mYs[0]) / dt0;
+            float span = (dt0 + dt) / 2f;
+            accel = (speed - (float) Math.hypot(vx0, vy0)) / span;
+            double angle = Math.atan2(vy, vx) - Math.atan2(vy0, vx0);
+            if (angle > Math.PI) {
+                angle -= Math.PI * 2;
+            } else if (angle < -Math.PI) {
+                angle += Math.PI * 2;
+            }
+            turn = (float) angle / span * step;
+            turn = Math.max(-MAX_TURN, Math.min(turn, MAX_TURN));
+        }
+
+        float x = mXs[last];
+        float y = mYs[last];
+        double heading = Math.atan2(vy, vx);
+        int n = 0;
+        while (n < max) {
+            // Slowing down is followed, speeding up is not, to avoid overshoots.
+            speed = Math.max(speed + Math.min(accel, 0f) * step, 0f);
+            if (speed < MIN_SPEED) {
+                break;
+            }
+            heading += turn;
+            x += (float) Math.cos(heading) * speed * step;
+            y += (float) Math.sin(heading) * speed * step;
+            outCoords[n * 2] = x;
+            outCoords[n * 2 + 1] = y;
+            n++;
+        }
+        return n;
+    }
+
+}
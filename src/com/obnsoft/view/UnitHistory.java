@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Historical positions of a touch event converted into units, stored in
+ * pairs in one array which is reused from event to event. It only grows when
+ * an event has more samples than any before, so a stroke allocates nothing
+ * once the largest batch has been seen.
+ */
+public class UnitHistory {
+
+    private float[] mCoords = new float[32];
+    private int     mCount;
+    private float   mLeft;
+    private float   mTop;
+    private float   mUnit = 1f;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Starts a batch of count samples, placed at (left, top) and scaled by unit.
+     */
+    public void begin(int count, float left, float top, float unit) {
+        if (count * 2 > mCoords.length) {
+            mCoords = new float[Math.max(count * 2, mCoords.length * 2)];
+        }
+        mCount = count;
+        mLeft = left;
+        mTop = top;
+        mUnit = unit;
+    }
+
+    public void set(int index, float x, float y) {
+        mCoords[index * 2] = (x - mLeft) / mUnit;
+        mCoords[index * 2 + 1] = (y - mTop) / mUnit;
+    }
+
+    /**
+     * Returns the array holding the batch as pairs, which may be longer.
+     */
+    public float[] getCoords() {
+        return mCoords;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.util.Arrays;
+
+/**
+ * Checks the reductions of {@link MipmapLevels} on a plain JVM and measures
+ * the cost of building them for a 1024x1024 image drawn at 1/64 of its size.
+ * Run from the project directory with:
+ * <pre>
+ * javac -d bin/tests src/com/obnsoft/view/MipmapLevels.java \
+ *         tests/src/com/obnsoft/view/MipmapLevelsCheck.java
+ * java -cp bin/tests com.obnsoft.view.MipmapLevelsCheck
+ * </pre>
+ */
+public class MipmapLevelsCheck {
+
+    private static final int SIZE = 1024;
+    private static final float SCALE = 1f / 64f;
+    private static final int RUNS = 20;
+
+    private static int sFailures;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        checkSizes();
+        checkAverage();
+        checkPartialUpdate();
+        benchmark();
+        if (sFailures > 0) {
+            System.out.println(sFailures + " check(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static void checkSizes() {
+        MipmapLevels levels = new MipmapLevels(SIZE, SIZE);
+        check("levels go down to one pixel", levels.getLevelCount() == 11
+                && levels.getWidth(10) == 1 && levels.getHeight(10) == 1);
+        int level = levels.getLevelForScale(SCALE);
+        check("1/64 scale draws level 6", level == 6
+                && levels.getWidth(level) == SIZE / 64 && levels.getHeight(level) == SIZE / 64);
+        check("scale over 1/2 draws the image", levels.getLevelForScale(0.75f) == 0);
+
+        MipmapLevels odd = new MipmapLevels(5, 3);
+        check("odd sizes are rounded up", odd.getLevelCount() == 4
+                && odd.getWidth(1) == 3 && odd.getHeight(1) == 2
+                && odd.getWidth(2) == 2 && odd.getHeight(2) == 1);
+    }
+
+    private static void checkAverage() {
+        int[] src = new int[] {
+            0xFFFF0000, 0x00000000,
+            0xFFFF0000, 0x00000000,
+        };
+        MipmapLevels levels = new MipmapLevels(2, 2);
+        levels.update(0, 0, 2, 2, src, 0, 2, null);
+        check("transparent pixels don't darken", levels.getPixels(1)[0] == 0x80FF0000);
+
+        int[] gray = new int[7 * 5];
+        Arrays.fill(gray, 0xFF808080);
+        MipmapLevels grays = new MipmapLevels(7, 5);
+        grays.update(0, 0, 7, 5, gray, 0, 7, null);
+        boolean isUniform = true;
+        for (int level = 1; level < grays.getLevelCount(); level++) {
+            for (int c : grays.getPixels(level)) {
+                isUniform &= (c == 0xFF808080);
+            }
+        }
+        check("uniform image stays uniform at the edges", isUniform);
+    }
+
+    private static void checkPartialUpdate() {
+        int[] image = createImage(64, 48);
+        MipmapLevels levels = new MipmapLevels(64, 48);
+        levels.update(0, 0, 64, 48, image, 0, 64, null);
+        for (int y = 10; y < 14; y++) {
+            for (int x = 20; x < 26; x++) {
+                image[y * 64 + x] = 0xFF00FF00;
+            }
+        }
+        int[] bounds = new int[levels.getLevelCount() * 4];
+        levels.update(20, 10, 26, 14, image, 0, 64, bounds);
+
+        MipmapLevels full = new MipmapLevels(64, 48);
+        full.update(0, 0, 64, 48, image, 0, 64, null);
+        boolean isSame = true;
+        for (int level = 1; level < levels.getLevelCount(); level++) {
+            isSame &= Arrays.equals(levels.getPixels(level), full.getPixels(level));
+        }
+        check("partial update matches a full one", isSame);
+        check("partial update reports its bounds",
+                bounds[4] == 10 && bounds[5] == 5 && bounds[6] == 13 && bounds[7] == 7);
+    }
+
+    private static void benchmark() {
+        int[] image = createImage(SIZE, SIZE);
+        MipmapLevels levels = new MipmapLevels(SIZE, SIZE);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            levels.update(0, 0, SIZE, SIZE, image, 0, SIZE, null);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println("full build of " + SIZE + "x" + SIZE + ": "
+                + (best / 1000) + " us");
+
+        int dabs = 10000;
+        long start = System.nanoTime();
+        for (int i = 0; i < dabs; i++) {
+            int x = (i * 37) % (SIZE - 8);
+            int y = (i * 53) % (SIZE - 8);
+            levels.update(x, y, x + 8, y + 8, image, 0, SIZE, null);
+        }
+        System.out.println("update of an 8x8 dab: "
+                + ((System.nanoTime() - start) / dabs) + " ns");
+
+        int level = levels.getLevelForScale(SCALE);
+        System.out.println("pixels read per frame at 1/64: "
+                + levels.getWidth(level) * levels.getHeight(level)
+                + " instead of " + SIZE * SIZE);
+    }
+
+    private static int[] createImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = 0xFF000000 | (x * 255 / width) << 16
+                        | (y * 255 / height) << 8 | ((x ^ y) & 0xFF);
+            }
+        }
+        return pixels;
+    }
+
+    private static void check(String name, boolean condition) {
+        if (!condition) {
+            System.out.println("FAILED: " + name);
+            sFailures++;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+/**
+ * Checks the trajectories of {@link SplineFlingEngine} on a plain JVM and
+ * measures the cost of a frame. Run from the project directory with:
+ * <pre>
+ * javac -d bin/tests src/com/obnsoft/view/*FlingEngine.java \
+ *         tests/src/com/obnsoft/view/SplineFlingEngineCheck.java
+ * java -cp bin/tests com.obnsoft.view.SplineFlingEngineCheck
+ * </pre>
+ */
+public class SplineFlingEngineCheck {
+
+    private static final float PPI = 320f;
+    private static final long FRAME = 16;   // ms
+
+    private static int sFailures;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        checkDeceleration();
+        checkBounds();
+        checkRetarget();
+        checkAbort();
+        benchmark();
+        if (sFailures > 0) {
+            System.out.println(sFailures + " check(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static void checkDeceleration() {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        engine.fling(0, 0, 4000, -2000, 0, 100000, -100000, 0, 0);
+        int finalX = engine.getFinalX();
+        int finalY = engine.getFinalY();
+        check("fling moves forward", finalX > 0 && finalY < 0);
+        int lastX = 0;
+        float lastVelocity = Float.MAX_VALUE;
+        boolean isMonotonic = true;
+        long time = 0;
+        while (engine.computeOffset(time)) {
+            float velocity = engine.getCurrVelocityX();
+            if (engine.getCurrX() < lastX || velocity > lastVelocity + 1f) {
+                isMonotonic = false;
+            }
+            lastX = engine.getCurrX();
+            lastVelocity = velocity;
+            time += FRAME;
+        }
+        check("position and velocity decrease monotonically", isMonotonic);
+        check("fling stops at its final position",
+                engine.getCurrX() == finalX && engine.getCurrY() == finalY);
+        check("faster fling goes farther", farther(8000) > farther(4000));
+
+        SplineFlingEngine slippery = new SplineFlingEngine(PPI);
+        slippery.setFriction(SplineFlingEngine.DEFAULT_FRICTION / 2f,
+                SplineFlingEngine.DEFAULT_FRICTION);
+        slippery.fling(0, 0, 4000, 4000, 0, 100000, 0, 100000, 0);
+        check("lower friction goes farther", slippery.getFinalX() > slippery.getFinalY());
+    }
+
+    private static void checkBounds() {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        engine.fling(0, 0, 8000, 0, 0, 500, 0, 0, 0);
+        check("final position is clamped", engine.getFinalX() == 500);
+        boolean isInside = true;
+        long time = 0;
+        while (engine.computeOffset(time)) {
+            isInside &= (engine.getCurrX() <= 500);
+            time += FRAME;
+        }
+        check("fling never passes the bound", isInside);
+        check("fling ends at the bound", engine.getCurrX() == 500);
+    }
+
+    private static void checkRetarget() {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        engine.fling(0, 0, 4000, 0, 0, 100000, 0, 0, 0);
+        engine.computeOffset(160);
+        int x = engine.getCurrX();
+        float velocity = engine.getCurrVelocityX();
+        engine.retarget(x + 300, 0, 160);
+        engine.computeOffset(161);
+        check("retarget keeps the position", Math.abs(engine.getCurrX() - x) <= 5);
+        check("retarget keeps the velocity",
+                Math.abs(engine.getCurrVelocityX() - velocity) < velocity * 0.1f);
+        long time = 161;
+        while (engine.computeOffset(time)) {
+            time += FRAME;
+        }
+        check("retarget ends at the new target", engine.getCurrX() == x + 300);
+    }
+
+    private static void checkAbort() {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        engine.fling(0, 0, 4000, 0, 0, 100000, 0, 0, 0);
+        engine.computeOffset(100);
+        int x = engine.getCurrX();
+        engine.abort();
+        check("abort finishes the fling", engine.isFinished() && !engine.computeOffset(200));
+        check("abort stops where it is", engine.getCurrX() == x && engine.getFinalX() == x);
+    }
+
+    private static void benchmark() {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        int frames = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            engine.fling(0, 0, 1000 + i % 7000, 1000 + i % 5000,
+                    -100000, 100000, -100000, 100000, 0);
+            for (long time = 0; engine.computeOffset(time); time += FRAME) {
+                frames++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("computeOffset: " + (elapsed / Math.max(frames, 1)) + " ns/frame");
+    }
+
+    private static int farther(int velocity) {
+        SplineFlingEngine engine = new SplineFlingEngine(PPI);
+        engine.fling(0, 0, velocity, 0, 0, 100000, 0, 0, 0);
+        return engine.getFinalX();
+    }
+
+    private static void check(String name, boolean condition) {
+        if (!condition) {
+            System.out.println("FAILED: " + name);
+            sFailures++;
+        }
+    }
+
+}
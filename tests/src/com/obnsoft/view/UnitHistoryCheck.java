@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 OBN-soft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.obnsoft.view;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks on a plain JVM that {@link UnitHistory} converts the historical
+ * samples of a stroke into units and allocates nothing over a stroke of
+ * 1,000 events. Run from the project directory with:
+ * <pre>
+ * javac -d bin/tests src/com/obnsoft/view/UnitHistory.java \
+ *         tests/src/com/obnsoft/view/UnitHistoryCheck.java
+ * java -cp bin/tests com.obnsoft.view.UnitHistoryCheck
+ * </pre>
+ * The allocation check needs a JVM which counts allocated bytes per thread,
+ * such as HotSpot, and is skipped on others.
+ */
+public class UnitHistoryCheck {
+
+    private static final int EVENTS = 1000;
+    private static final int MAX_HISTORY = 12;
+
+    private static int sFailures;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        checkConversion();
+        checkAllocation();
+        if (sFailures > 0) {
+            System.out.println(sFailures + " check(s) failed.");
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static void checkConversion() {
+        UnitHistory history = new UnitHistory();
+        history.begin(3, 10f, 20f, 4f);
+        history.set(0, 10f, 20f);
+        history.set(1, 14f, 28f);
+        history.set(2, 11f, 21f);
+        float[] coords = history.getCoords();
+        check("count is kept", history.getCount() == 3);
+        check("samples are converted into units",
+                coords[0] == 0f && coords[1] == 0f && coords[2] == 1f && coords[3] == 2f
+                && coords[4] == 0.25f && coords[5] == 0.25f);
+
+        history.begin(100, 0f, 0f, 1f);
+        check("buffer grows for a large batch", history.getCoords().length >= 200);
+    }
+
+    private static void checkAllocation() {
+        UnitHistory history = new UnitHistory();
+        float sum = runStroke(history);     // Warms up and grows the buffer.
+        float[] coords = history.getCoords();
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation check skipped.");
+            return;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        long before = sunBean.getThreadAllocatedBytes(threadId);
+        sum += runStroke(history);
+        long allocated = sunBean.getThreadAllocatedBytes(threadId) - before;
+        check("buffer is reused over the stroke", history.getCoords() == coords);
+        check("stroke of " + EVENTS + " events allocates nothing (" + allocated + " bytes)",
+                allocated == 0);
+        if (Float.isNaN(sum)) {
+            System.out.println();   // Keeps the sum alive.
+        }
+    }
+
+    /**
+     * Delivers a stroke the way MagnifyView does, with varying history sizes.
+     */
+    private static float runStroke(UnitHistory history) {
+        float sum = 0f;
+        for (int event = 0; event < EVENTS; event++) {
+            int count = (event * 7) % (MAX_HISTORY + 1);
+            history.begin(count, 12f, 34f, 8f);
+            for (int i = 0; i < count; i++) {
+                history.set(i, event + i * 0.1f, event * 0.5f + i);
+            }
+            float[] coords = history.getCoords();
+            for (int i = 0; i < history.getCount() * 2; i++) {
+                sum += coords[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void check(String name, boolean condition) {
+        if (!condition) {
+            System.out.println("FAILED: " + name);
+            sFailures++;
+        }
+    }
+
+}